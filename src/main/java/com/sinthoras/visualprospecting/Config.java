@@ -18,7 +18,13 @@ public class Config {
         public static final int uploadBandwidthBytes = 2000000;
         public static final int maxTransferCacheSizeMB = 50;
         public static final boolean enableVoxelMapWaypointsByDefault = false;
-        public static final int maxDimensionSizeMBForFastScanning = 10000;
+        public static final int cacheCompactionThreshold = 100;
+        public static final int dimensionCacheIdleMinutes = 15;
+        public static final int cacheTilesPerDimension = 512;
+        public static final boolean compressCacheFiles = false;
+        public static final int backgroundScanMaxThreads = 0;
+        public static final int backgroundScanMaxReadMBPerSecond = 0;
+        public static final int backgroundScanMaxServerTickMS = 40;
         public static boolean enableDeveloperOverlays = false;
     }
 
@@ -40,7 +46,13 @@ public class Config {
     public static int uploadPacketsPerSecond = uploadBandwidthBytes / VP.uploadSizePerPacketInBytes;
     public static int maxTransferCacheSizeMB = Defaults.maxTransferCacheSizeMB;
     public static boolean enableVoxelMapWaypointsByDefault = Defaults.enableVoxelMapWaypointsByDefault;
-    public static int maxDimensionSizeMBForFastScanning = Defaults.maxDimensionSizeMBForFastScanning;
+    public static int cacheCompactionThreshold = Defaults.cacheCompactionThreshold;
+    public static int dimensionCacheIdleMinutes = Defaults.dimensionCacheIdleMinutes;
+    public static int cacheTilesPerDimension = Defaults.cacheTilesPerDimension;
+    public static boolean compressCacheFiles = Defaults.compressCacheFiles;
+    public static int backgroundScanMaxThreads = Defaults.backgroundScanMaxThreads;
+    public static int backgroundScanMaxReadMBPerSecond = Defaults.backgroundScanMaxReadMBPerSecond;
+    public static int backgroundScanMaxServerTickMS = Defaults.backgroundScanMaxServerTickMS;
     public static boolean enableDeveloperOverlays = Defaults.enableDeveloperOverlays;
 
     public static void syncronizeConfiguration(File configFile) {
@@ -118,14 +130,68 @@ public class Config {
                 "[CLIENT / VoxelMap] Enable waypoints added by prospecting GT ore veins or underground fluids by default");
         enableVoxelMapWaypointsByDefault = enableVoxelMapWaypointsByDefaultProperty.getBoolean();
 
-        Property maxDimensionSizeMBForFastScanningProperty = configuration.get(
+        // No longer used, the second identification pass only keeps chunks whose neighbors are not scanned yet
+        configuration.getCategory(Categories.caching).remove("maxDimensionSizeMBForFastScanning");
+
+        Property cacheCompactionThresholdProperty = configuration.get(
+                Categories.caching,
+                "cacheCompactionThreshold",
+                Defaults.cacheCompactionThreshold,
+                "[CLIENT + SERVER] Changes to the vein cache are appended to a journal. Once the journal or the "
+                        + "outdated records reach this percentage of the compacted cache size, the cache files are "
+                        + "compacted in the background.");
+        cacheCompactionThreshold = cacheCompactionThresholdProperty.getInt();
+
+        Property dimensionCacheIdleMinutesProperty = configuration.get(
+                Categories.caching,
+                "dimensionCacheIdleMinutes",
+                Defaults.dimensionCacheIdleMinutes,
+                "[CLIENT + SERVER] Dimensions are loaded from the vein cache on first access. Dimensions that were not "
+                        + "accessed for this many minutes are saved and removed from memory. Set to 0 to keep all "
+                        + "loaded dimensions in memory.");
+        dimensionCacheIdleMinutes = dimensionCacheIdleMinutesProperty.getInt();
+
+        Property cacheTilesPerDimensionProperty = configuration.get(
+                Categories.caching,
+                "cacheTilesPerDimension",
+                Defaults.cacheTilesPerDimension,
+                "[CLIENT + SERVER] Ore veins are stored in tiles of one region file (32x32 chunks) each. Defines how "
+                        + "many unchanged tiles per dimension are kept in memory before the least recently used ones "
+                        + "are dropped and read from disk again when needed.");
+        cacheTilesPerDimension = cacheTilesPerDimensionProperty.getInt();
+
+        Property compressCacheFilesProperty = configuration.get(
+                Categories.caching,
+                "compressCacheFiles",
+                Defaults.compressCacheFiles,
+                "[CLIENT + SERVER] Compress the vein cache files with Deflate when they are compacted. Saves disk space "
+                        + "at the cost of some CPU time when reading them. Compressed and uncompressed files can always "
+                        + "be read, regardless of this setting.");
+        compressCacheFiles = compressCacheFilesProperty.getBoolean();
+
+        Property backgroundScanMaxThreadsProperty = configuration.get(
+                Categories.caching,
+                "backgroundScanMaxThreads",
+                Defaults.backgroundScanMaxThreads,
+                "[SERVER] Maximum number of threads that analyze chunks while the vein cache is rebuilt in the "
+                        + "background. Set to 0 to use all but one CPU core.");
+        backgroundScanMaxThreads = backgroundScanMaxThreadsProperty.getInt();
+
+        Property backgroundScanMaxReadMBPerSecondProperty = configuration.get(
+                Categories.caching,
+                "backgroundScanMaxReadMBPerSecond",
+                Defaults.backgroundScanMaxReadMBPerSecond,
+                "[SERVER] Maximum amount of region file data in MB that is read per second while the vein cache is "
+                        + "rebuilt in the background. Set to 0 to not limit reading.");
+        backgroundScanMaxReadMBPerSecond = backgroundScanMaxReadMBPerSecondProperty.getInt();
+
+        Property backgroundScanMaxServerTickMSProperty = configuration.get(
                 Categories.caching,
-                "maxDimensionSizeMBForFastScanning",
-                Defaults.maxDimensionSizeMBForFastScanning,
-                "[Client + Server] Define the maximum size of a "
-                        + "dimension in MB that can be processed in a single pass. Reduce this number if you run into "
-                        + "memory issues during the initial world scan (OutOfMemoryException).");
-        maxDimensionSizeMBForFastScanning = maxDimensionSizeMBForFastScanningProperty.getInt();
+                "backgroundScanMaxServerTickMS",
+                Defaults.backgroundScanMaxServerTickMS,
+                "[SERVER] The background rebuild of the vein cache pauses while the server takes longer than this many "
+                        + "milliseconds per tick on average. Set to 0 to never pause.");
+        backgroundScanMaxServerTickMS = backgroundScanMaxServerTickMSProperty.getInt();
 
         Property enableDeveloperOverlaysProperty = configuration.get(
                 Categories.general,
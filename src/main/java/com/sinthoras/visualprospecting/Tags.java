@@ -15,6 +15,8 @@ public class Tags {
     public static final String SERVER_DIR = VISUALPROSPECTING_DIR + "server/";
     public static final String UNDERGROUNDFLUID_DIR = "fluids/";
     public static final String OREVEIN_DIR = "ore/";
+    public static final String REGION_MANIFEST_FILE = "regions.json";
+    public static final String ANALYSIS_IN_PROGRESS_FILE = "analysis.inprogress";
     public static final String worldId = "wId";
     public static final String ORE_MIX_NONE_NAME = "ore.mix.none";
     public static final String BOOK_TITLE = "title";
@@ -1,16 +1,22 @@
 package com.sinthoras.visualprospecting;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.launchwrapper.Launch;
@@ -75,6 +81,44 @@ public class Utils {
         return (((long) chunkX) << 32) | (chunkZ & 0xffffffffL);
     }
 
+    public static int keyToChunkX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int keyToChunkZ(long key) {
+        return (int) key;
+    }
+
+    // Maps small negative and positive numbers to small positive ones, so they encode to short varints
+    public static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Writes seven bits per byte, the highest bit marks that more bytes follow
+    public static void writeVarInt(DataOutput output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    public static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            final byte currentByte = buffer.get();
+            value |= (currentByte & 0x7F) << shift;
+            if (currentByte >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
     public static int mapToCenterOreChunkCoord(final int chunkCoord) {
         if (GT_Worldgenerator.oregenPattern == GT_Worldgenerator.OregenPattern.EQUAL_SPACING) {
             // new evenly spaced ore pattern
@@ -152,6 +196,57 @@ public class Utils {
         }
     }
 
+    /**
+     * Maps a file read-only into memory, so it can be parsed without copying it onto the heap. The mapping must be
+     * handed to {@link #unmap(ByteBuffer)} once parsing is done.
+     *
+     * @return The mapped file or null if it does not exist or cannot be read
+     */
+    public static MappedByteBuffer mapFileReadOnly(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (final FileChannel inputChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return inputChannel.map(FileChannel.MapMode.READ_ONLY, 0, inputChannel.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Releases a mapping from {@link #mapFileReadOnly(File)} right away instead of waiting for the garbage collector.
+     * Otherwise, the file cannot be replaced on Windows. The buffer and all its slices must not be used afterwards.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() == false) {
+            return;
+        }
+        try {
+            // Java 9+
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            // Java 8
+            try {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // The garbage collector will release the mapping eventually
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // The garbage collector will release the mapping eventually
+        }
+    }
+
     public static Map<String, Short> readFileToMap(File file) {
         if (file.exists() == false) {
             return new HashMap<>();
@@ -199,24 +294,61 @@ public class Utils {
         }
     }
 
-    public static Map<Integer, ByteBuffer> getDIMFiles(File directory) {
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public static byte[] deflate(ByteBuffer buffer) {
+        final Deflater deflater = new Deflater();
         try {
-            final List<Integer> dimensionIds = Files.walk(directory.toPath(), 1).filter(Files::isRegularFile)
-                    .filter(path -> path.getFileName().toString().startsWith("DIM"))
-                    .map(dimensionFolder -> Integer.parseInt(dimensionFolder.getFileName().toString().substring(3)))
-                    .collect(Collectors.toList());
-            final Map<Integer, ByteBuffer> dimensionFiles = new HashMap<>();
-            for (int dimensionId : dimensionIds) {
-                ByteBuffer buffer = readFileToBuffer(new File(directory.toPath() + "/DIM" + dimensionId));
-                if (buffer != null) {
-                    dimensionFiles.put(dimensionId, buffer);
+            deflater.setInput(toByteArray(buffer));
+            deflater.finish();
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(buffer.remaining() / 2 + 64);
+            final byte[] deflated = new byte[8192];
+            while (deflater.finished() == false) {
+                outputStream.write(deflated, 0, deflater.deflate(deflated));
+            }
+            return outputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static ByteBuffer inflate(ByteBuffer buffer, int inflatedLength) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(toByteArray(buffer));
+            final byte[] inflated = new byte[inflatedLength];
+            int position = 0;
+            while (position < inflatedLength) {
+                final int inflatedBytes = inflater.inflate(inflated, position, inflatedLength - position);
+                if (inflatedBytes == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Deflated data ended after " + position + " bytes");
                 }
+                position += inflatedBytes;
             }
-            return dimensionFiles;
+            return ByteBuffer.wrap(inflated);
+        } finally {
+            inflater.end();
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return new HashMap<>();
+    // Writes to a temporary file first and renames it over the target, so readers never see a partial file
+    public static void writeFileAtomically(File file, ByteBuffer byteBuffer) throws IOException {
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+                final FileChannel outputChannel = outputStream.getChannel()) {
+            while (byteBuffer.hasRemaining()) {
+                outputChannel.write(byteBuffer);
+            }
+            outputChannel.force(true);
+        }
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
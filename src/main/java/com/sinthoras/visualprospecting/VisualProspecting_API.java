@@ -3,7 +3,6 @@ package com.sinthoras.visualprospecting;
 import static com.sinthoras.visualprospecting.Utils.isJourneyMapInstalled;
 import static com.sinthoras.visualprospecting.Utils.isXaerosWorldMapInstalled;
 
-import java.util.Collections;
 import java.util.List;
 
 import net.minecraft.entity.player.EntityPlayer;
@@ -122,16 +121,17 @@ public class VisualProspecting_API {
             final OreVeinPosition oreVeinPosition = ClientCache.instance
                     .getOreVein(dimensionId, Utils.coordBlockToChunk(blockX), Utils.coordBlockToChunk(blockZ));
             if (oreVeinPosition.isDepleted() == false) {
-                oreVeinPosition.toggleDepleted();
+                toggleOreVeinDepleted(oreVeinPosition);
             }
-            ClientCache.instance.putOreVeins(Collections.singletonList(oreVeinPosition));
         }
 
         public static void toggleOreVeinDepleted(OreVeinPosition oreVeinPosition) {
-            oreVeinPosition = ClientCache.instance
-                    .getOreVein(oreVeinPosition.dimensionId, oreVeinPosition.chunkX, oreVeinPosition.chunkZ);
+            // The cache only hands out copies, so the state must be changed in the cache itself
+            ClientCache.instance
+                    .toggleOreVein(oreVeinPosition.dimensionId, oreVeinPosition.chunkX, oreVeinPosition.chunkZ);
             oreVeinPosition.toggleDepleted();
-            ClientCache.instance.putOreVeins(Collections.singletonList(oreVeinPosition));
+            // The rendered locations hold their own copies, which are only replaced once the layer is regenerated
+            OreVeinLayerManager.instance.forceRefresh();
         }
 
         public static void putProspectionResults(List<OreVeinPosition> oreVeins,
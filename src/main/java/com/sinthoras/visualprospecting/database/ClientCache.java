@@ -145,6 +145,7 @@ public class ClientCache extends WorldCache {
     }
 
     public void resetPlayerProgression() {
+        awaitPendingWrites();
         Utils.deleteDirectoryRecursively(oreVeinCacheDirectory);
         Utils.deleteDirectoryRecursively(undergroundFluidCacheDirectory);
         oreVeinCacheDirectory.mkdirs();
@@ -154,7 +155,7 @@ public class ClientCache extends WorldCache {
 
     public List<OreVeinPosition> getAllOreVeins() {
         List<OreVeinPosition> allOreVeins = new ArrayList<>();
-        for (DimensionCache dimension : dimensions.values()) {
+        for (DimensionCache dimension : getAllDimensions()) {
             allOreVeins.addAll(dimension.getAllOreVeins());
         }
         return allOreVeins;
@@ -162,7 +163,7 @@ public class ClientCache extends WorldCache {
 
     public List<UndergroundFluidPosition> getAllUndergroundFluids() {
         List<UndergroundFluidPosition> allUndergroundFluids = new ArrayList<>();
-        for (DimensionCache dimension : dimensions.values()) {
+        for (DimensionCache dimension : getAllDimensions()) {
             allUndergroundFluids.addAll(dimension.getAllUndergroundFluids());
         }
         return allUndergroundFluids;
@@ -0,0 +1,132 @@
+package com.sinthoras.visualprospecting.database;
+
+// Open addressing hash map from long to int without any boxing. The keys are spread over independently locked
+// segments, so many threads can read and write at once. Entries can not be removed.
+public class ConcurrentLongIntHashMap {
+
+    private static final int SEGMENT_BITS = 5;
+    private static final int NUMBER_OF_SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static class Segment {
+
+        // Key 0 marks free slots, so an actual 0 key is stored outside the tables
+        private long[] keys;
+        private int[] values;
+        private boolean containsZeroKey = false;
+        private int zeroKeyValue;
+        private int size = 0;
+        private int mask;
+        private int maxFill;
+
+        private Segment() {
+            allocate(DEFAULT_SEGMENT_CAPACITY);
+        }
+
+        private synchronized int get(long key, int noEntryValue) {
+            if (key == 0) {
+                return containsZeroKey ? zeroKeyValue : noEntryValue;
+            }
+            final int slot = findSlot(key);
+            return keys[slot] != 0 ? values[slot] : noEntryValue;
+        }
+
+        private synchronized int put(long key, int value, int noEntryValue) {
+            if (key == 0) {
+                final int previous = containsZeroKey ? zeroKeyValue : noEntryValue;
+                if (containsZeroKey == false) {
+                    containsZeroKey = true;
+                    size++;
+                }
+                zeroKeyValue = value;
+                return previous;
+            }
+            final int slot = findSlot(key);
+            if (keys[slot] != 0) {
+                final int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size > maxFill) {
+                rehash(keys.length << 1);
+            }
+            return noEntryValue;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private int findSlot(long key) {
+            int slot = mix(key) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash(int newCapacity) {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            allocate(newCapacity);
+            for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                if (oldKeys[oldSlot] != 0) {
+                    final int slot = findSlot(oldKeys[oldSlot]);
+                    keys[slot] = oldKeys[oldSlot];
+                    values[slot] = oldValues[oldSlot];
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            maxFill = (int) (capacity * LOAD_FACTOR);
+        }
+    }
+
+    private final Segment[] segments = new Segment[NUMBER_OF_SEGMENTS];
+    private final int noEntryValue;
+
+    public ConcurrentLongIntHashMap(int noEntryValue) {
+        this.noEntryValue = noEntryValue;
+        for (int segment = 0; segment < NUMBER_OF_SEGMENTS; segment++) {
+            segments[segment] = new Segment();
+        }
+    }
+
+    public int getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    public int get(long key) {
+        return getSegment(key).get(key, noEntryValue);
+    }
+
+    // Returns the previous value or noEntryValue if the key was not present
+    public int put(long key, int value) {
+        return getSegment(key).put(key, value, noEntryValue);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    // The segment is chosen by the highest hash bits, the slot within a segment by the lowest
+    private Segment getSegment(long key) {
+        return segments[mix(key) >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    private static int mix(long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32) ^ (hash >>> 16));
+    }
+}
@@ -3,14 +3,22 @@ package com.sinthoras.visualprospecting.database;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.minecraft.world.ChunkCoordIntPair;
 import net.minecraftforge.fluids.Fluid;
 import net.minecraftforge.fluids.FluidRegistry;
 
+import com.sinthoras.visualprospecting.Config;
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.VP;
 import com.sinthoras.visualprospecting.database.veintypes.VeinType;
@@ -24,176 +32,1044 @@ public class DimensionCache {
         New
     }
 
-    // The in-memory cache of ore chunks
-    private final Map<ChunkCoordIntPair, OreVeinPosition> oreChunks = new HashMap<>();
+    // Vein type ids are assigned starting at 1, so a packed value of 0 never occurs for a stored ore chunk. In the
+    // journal it is a tombstone that removes the ore chunk again
+    private static final short NO_ORE_CHUNK = 0;
+    private static final short DEPLETED_FLAG = (short) 0x8000;
+    private static final short VEIN_TYPE_ID_MASK = 0x7FFF;
+    // Avoids rewriting small files over and over again
+    private static final int MIN_RECORDS_FOR_COMPACTION = 4096;
+    // Ore chunks are grouped into tiles of 32x32 chunks, the size of a region file
+    private static final int TILE_SHIFT = 5;
+    private static final int TILE_MASK = (1 << TILE_SHIFT) - 1;
+    private static final int CHUNKS_PER_TILE = 1 << (2 * TILE_SHIFT);
+    // Ore veins are only stored at the center of every 3x3 chunks, at most 11 along each side of a tile
+    private static final int ORE_CHUNK_SPACING = 3;
+    private static final int ORE_CHUNKS_PER_TILE_SIDE = ((1 << TILE_SHIFT) + ORE_CHUNK_SPACING - 1) / ORE_CHUNK_SPACING;
+    private static final int ORE_CHUNKS_PER_TILE = ORE_CHUNKS_PER_TILE_SIDE * ORE_CHUNKS_PER_TILE_SIDE;
+    private static final int MAX_ENUMERATED_TILES = 64;
+    // Once there are too many resident tiles, this fraction of the limit is evicted beyond it
+    private static final int EVICTED_TILES_FRACTION = 8;
+    // A stored tile is an occupancy bitmap over all chunks followed by the packed ore veins of the occupied ones
+    private static final int TILE_BITMAP_BYTES = CHUNKS_PER_TILE / Byte.SIZE;
+    // Marks the varint encoding of underground fluids. Never a valid chunk coordinate, so it cannot be confused with
+    // the first record of the legacy encoding
+    private static final int UNDERGROUND_FLUIDS_MAGIC = 0x56505546;
+    private static final byte UNDERGROUND_FLUIDS_VERSION = 1;
+    private static final int UNDERGROUND_FLUIDS_PER_BLOCK = 512;
+    private static final int EVICTED = -1;
+    private static final Comparator<UndergroundFluidPosition> UNDERGROUND_FLUID_ORDER = Comparator
+            .comparingInt((UndergroundFluidPosition position) -> position.chunkX)
+            .thenComparingInt(position -> position.chunkZ);
+
+    // Regions without stored ore veins that were looked up. Forgotten all at once when there are too many
+    private static final int MAX_ABSENT_TILES = 4096;
+
+    /**
+     * The ore veins of one tile: the packed vein type id plus depleted flag of every ore chunk, exactly as they are
+     * stored on disk. Only the centers of the ore chunks have a slot, all other chunks never have an ore vein. Lookups
+     * and puts change single chunks without any lock. Puts pin the tile while they change it, so it is not evicted or
+     * replaced underneath them.
+     */
+    private static class OreVeinTile {
+
+        private static final int RETIRED = -1;
+        private static final int NO_SLOT = -1;
+
+        // Chunk offset of the first ore chunk center within the tile. No tile holds negative and positive chunk
+        // coordinates at once, so the centers are evenly spaced across it in both ore patterns
+        private final int firstCenterX;
+        private final int firstCenterZ;
+        private final AtomicIntegerArray oreVeins = new AtomicIntegerArray(ORE_CHUNKS_PER_TILE);
+        // One bit per slot that changed since the last save
+        private final AtomicLongArray unsavedChunks = new AtomicLongArray(
+                (ORE_CHUNKS_PER_TILE + Long.SIZE - 1) / Long.SIZE);
+        private final AtomicBoolean hasUnsavedChunks = new AtomicBoolean(false);
+        // Number of puts in progress or RETIRED once the tile is evicted or replaced
+        private final AtomicInteger pins = new AtomicInteger(0);
+        // Counts the changes. The tile differs from the snapshot on disk unless both versions match
+        private final AtomicInteger version = new AtomicInteger(0);
+        private volatile int snapshotVersion = 0;
+        // Not synchronized on purpose, an approximate least recently used order is good enough
+        private int lastAccess;
+
+        private OreVeinTile(long tileKey) {
+            this(getFirstCenter(Utils.keyToChunkX(tileKey)), getFirstCenter(Utils.keyToChunkZ(tileKey)));
+        }
+
+        private OreVeinTile(int firstCenterX, int firstCenterZ) {
+            this.firstCenterX = firstCenterX;
+            this.firstCenterZ = firstCenterZ;
+        }
+
+        // Stored ore veins of chunks that are no centers can never be looked up, so they are left out
+        private OreVeinTile(long tileKey, short[] oreVeins) {
+            this(tileKey);
+            for (int indexInTile = 0; indexInTile < CHUNKS_PER_TILE; indexInTile++) {
+                final int slot = getSlot(indexInTile);
+                if (slot != NO_SLOT) {
+                    this.oreVeins.set(slot, oreVeins[indexInTile]);
+                }
+            }
+        }
+
+        private static int getFirstCenter(int tileCoord) {
+            final int firstChunkCoord = tileCoord << TILE_SHIFT;
+            return Math.floorMod(Utils.mapToCenterOreChunkCoord(firstChunkCoord) - firstChunkCoord, ORE_CHUNK_SPACING);
+        }
+
+        private int getSlot(int indexInTile) {
+            final int centerX = (indexInTile >> TILE_SHIFT) - firstCenterX;
+            final int centerZ = (indexInTile & TILE_MASK) - firstCenterZ;
+            if (centerX < 0 || centerZ < 0 || centerX % ORE_CHUNK_SPACING != 0 || centerZ % ORE_CHUNK_SPACING != 0) {
+                return NO_SLOT;
+            }
+            return centerX / ORE_CHUNK_SPACING * ORE_CHUNKS_PER_TILE_SIDE + centerZ / ORE_CHUNK_SPACING;
+        }
+
+        // Only valid for slots that were ever set, the last slot of a side lies outside of some tiles
+        private int getIndexInTile(int slot) {
+            final int chunkX = firstCenterX + slot / ORE_CHUNKS_PER_TILE_SIDE * ORE_CHUNK_SPACING;
+            final int chunkZ = firstCenterZ + slot % ORE_CHUNKS_PER_TILE_SIDE * ORE_CHUNK_SPACING;
+            return (chunkX << TILE_SHIFT) | chunkZ;
+        }
+
+        // Throws if an ore vein is put on a chunk that is no center, the cache maps every chunk to its center first
+        private int getSlotToChange(int indexInTile, short packedOreVein) {
+            final int slot = getSlot(indexInTile);
+            if (slot == NO_SLOT && packedOreVein != NO_ORE_CHUNK) {
+                throw new IllegalArgumentException("Chunk " + indexInTile + " of the tile is no ore chunk center");
+            }
+            return slot;
+        }
+
+        private short get(int indexInTile) {
+            final int slot = getSlot(indexInTile);
+            return slot == NO_SLOT ? NO_ORE_CHUNK : (short) oreVeins.get(slot);
+        }
+
+        private void set(int indexInTile, short packedOreVein) {
+            final int slot = getSlotToChange(indexInTile, packedOreVein);
+            if (slot != NO_SLOT) {
+                oreVeins.set(slot, packedOreVein);
+            }
+        }
+
+        private short getAndSet(int indexInTile, short packedOreVein) {
+            final int slot = getSlotToChange(indexInTile, packedOreVein);
+            return slot == NO_SLOT ? NO_ORE_CHUNK : (short) oreVeins.getAndSet(slot, packedOreVein);
+        }
+
+        private boolean compareAndSet(int indexInTile, short expectedOreVein, short packedOreVein) {
+            final int slot = getSlotToChange(indexInTile, packedOreVein);
+            if (slot == NO_SLOT) {
+                return expectedOreVein == NO_ORE_CHUNK;
+            }
+            return oreVeins.compareAndSet(slot, expectedOreVein, packedOreVein);
+        }
+
+        // A consistent copy for encoding, the chunks might change while it is encoded otherwise
+        private short[] toArray() {
+            final short[] copy = new short[CHUNKS_PER_TILE];
+            for (int slot = 0; slot < ORE_CHUNKS_PER_TILE; slot++) {
+                final short packedOreVein = (short) oreVeins.get(slot);
+                if (packedOreVein != NO_ORE_CHUNK) {
+                    copy[getIndexInTile(slot)] = packedOreVein;
+                }
+            }
+            return copy;
+        }
+
+        private int countOreChunks() {
+            int oreChunks = 0;
+            for (int slot = 0; slot < ORE_CHUNKS_PER_TILE; slot++) {
+                if (oreVeins.get(slot) != NO_ORE_CHUNK) {
+                    oreChunks++;
+                }
+            }
+            return oreChunks;
+        }
+
+        private void markAccessed(int accessClock) {
+            if (lastAccess != accessClock) {
+                lastAccess = accessClock;
+            }
+        }
+
+        private boolean isModified() {
+            return version.get() != snapshotVersion;
+        }
+
+        // Returns whether the tile must be added to the unsaved tiles
+        private boolean markUnsaved(int indexInTile) {
+            final int slot = getSlot(indexInTile);
+            final int word = slot / Long.SIZE;
+            final long bit = 1L << slot;
+            if ((unsavedChunks.get(word) & bit) == 0) {
+                unsavedChunks.accumulateAndGet(word, bit, (bits, newBit) -> bits | newBit);
+            }
+            // Set after the bit, so a save that took the flag also finds the bit
+            return hasUnsavedChunks.get() == false && hasUnsavedChunks.compareAndSet(false, true);
+        }
+
+        // Must only be called by one thread at a time
+        private void takeUnsavedOreChunks(long tileKey, LongShortHashMap oreChunks) {
+            // Cleared before the bits, so a put that sets a bit afterwards marks the tile again
+            hasUnsavedChunks.set(false);
+            for (int word = 0; word < unsavedChunks.length(); word++) {
+                long bits = unsavedChunks.getAndSet(word, 0);
+                while (bits != 0) {
+                    final int slot = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                    oreChunks.put(getKeyInTile(tileKey, getIndexInTile(slot)), (short) oreVeins.get(slot));
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        private boolean tryPin() {
+            int currentPins;
+            do {
+                currentPins = pins.get();
+                if (currentPins == RETIRED) {
+                    return false;
+                }
+            } while (pins.compareAndSet(currentPins, currentPins + 1) == false);
+            return true;
+        }
+
+        private void unpin() {
+            pins.decrementAndGet();
+        }
+
+        // Waits for running puts. Puts that come later look the tile up again
+        private void retire() {
+            while (pins.compareAndSet(0, RETIRED) == false) {
+                Thread.yield();
+            }
+        }
+
+        // Only unmodified tiles can be read from disk again
+        private boolean tryRetireUnmodified() {
+            if (pins.compareAndSet(0, RETIRED) == false) {
+                return false;
+            }
+            if (isModified()) {
+                pins.set(0);
+                return false;
+            }
+            return true;
+        }
+
+        // An unpinned copy, including the unsaved chunks and versions
+        private OreVeinTile copy() {
+            final OreVeinTile copy = new OreVeinTile(firstCenterX, firstCenterZ);
+            for (int slot = 0; slot < ORE_CHUNKS_PER_TILE; slot++) {
+                copy.oreVeins.set(slot, oreVeins.get(slot));
+            }
+            for (int word = 0; word < unsavedChunks.length(); word++) {
+                copy.unsavedChunks.set(word, unsavedChunks.get(word));
+            }
+            copy.hasUnsavedChunks.set(hasUnsavedChunks.get());
+            copy.version.set(version.get());
+            copy.snapshotVersion = snapshotVersion;
+            copy.lastAccess = lastAccess;
+            return copy;
+        }
+    }
+
+    // The tiles in memory. Lookups and puts of resident tiles do not lock, while loading, evicting and replacing tiles
+    // is done under the lock of this dimension
+    private final Map<Long, OreVeinTile> residentTiles = new ConcurrentHashMap<>();
+    private final Set<Long> absentTiles = ConcurrentHashMap.newKeySet();
+    // Tiles with changes that are not in the journal yet
+    private final Set<Long> unsavedTiles = ConcurrentHashMap.newKeySet();
+    // Tile key to the version that the running compaction writes. These tiles cannot be evicted until it is done
+    private final Map<Long, Integer> compactingTiles = new HashMap<>();
+    // Resident tiles that were unmodified when they were added or compacted, the only ones that eviction looks at.
+    // Tiles that were modified since are dropped from it once eviction comes across them
+    private final Set<Long> evictableTiles = new HashSet<>();
+    // Advances with every loaded tile, tiles remember it when accessed
+    private volatile int accessClock = 0;
+    private TiledCacheFile oreVeinFile;
+    private final LongAdder oreChunkCount = new LongAdder();
+    private boolean hasFlatSnapshot = false;
     private final Map<ChunkCoordIntPair, UndergroundFluidPosition> undergroundFluids = new HashMap<>();
-    private final Set<ChunkCoordIntPair> changedOrNewOreChunks = new HashSet<>();
-    private final Set<ChunkCoordIntPair> changedOrNewUndergroundFluids = new HashSet<>();
+    // Reused by every save, only the writer saves
+    private final LongShortHashMap savingOreChunks = new LongShortHashMap(NO_ORE_CHUNK);
+    private Map<ChunkCoordIntPair, UndergroundFluidPosition> changedOrNewUndergroundFluids = new HashMap<>();
+    private Map<ChunkCoordIntPair, UndergroundFluidPosition> savingUndergroundFluids = new HashMap<>();
+    // Number of records on disk including outdated ones, split by snapshot and journal
+    private int snapshotRecords = 0;
+    private int journalRecords = 0;
+    // Records of the snapshot that the running compaction writes and of the journal it replaces
+    private int compactingSnapshotRecords = 0;
+    private int compactedJournalRecords = 0;
+    // Written by every access, so idle dimensions can be evicted
+    private volatile long lastAccessTime = System.currentTimeMillis();
+    // Number of changes in progress or EVICTED once the dimension was saved for the last time
+    private final AtomicInteger pins = new AtomicInteger(0);
     public final int dimensionId;
 
     public DimensionCache(int dimensionId) {
         this.dimensionId = dimensionId;
     }
 
-    // Saves ore chunks loaded to a file
-    public ByteBuffer saveOreChunks() {
+    public void markAccessed() {
+        // Idle dimensions are evicted after minutes, so every access does not need to write the shared field
+        final long now = System.currentTimeMillis();
+        if (now - lastAccessTime >= 1000) {
+            lastAccessTime = now;
+        }
+    }
 
-        // If there are chunks
-        if (!changedOrNewOreChunks.isEmpty()) {
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
 
-            // Create a buffer of appropriate size
-            final ByteBuffer byteBuffer = ByteBuffer
-                    .allocate(changedOrNewOreChunks.size() * (2 * Integer.BYTES + Short.BYTES));
+    // Must be held while changing the dimension. Fails once it is evicted, the change then goes to the reloaded one
+    public boolean tryPin() {
+        int currentPins;
+        do {
+            currentPins = pins.get();
+            if (currentPins == EVICTED) {
+                return false;
+            }
+        } while (pins.compareAndSet(currentPins, currentPins + 1) == false);
+        return true;
+    }
+
+    public void unpin() {
+        pins.decrementAndGet();
+    }
+
+    // Fails while a change is in progress. Afterwards, nothing can change the dimension anymore
+    public boolean tryEvict() {
+        return pins.compareAndSet(0, EVICTED);
+    }
+
+    private static short packOreVein(VeinType veinType, boolean depleted) {
+        final short veinTypeId = VeinTypeCaching.getVeinTypeId(veinType);
+        return depleted ? (short) (veinTypeId | DEPLETED_FLAG) : veinTypeId;
+    }
 
-            // Lambda time: stick each one into the buffer, with a special case if it's depleted
-            // WARNING: No member of changedOrNewOreChunks may be null!
-            changedOrNewOreChunks.stream().map(oreChunks::get).forEach(oreVeinPosition -> {
+    private static VeinType unpackVeinType(short packedOreVein) {
+        return VeinTypeCaching.getVeinType((short) (packedOreVein & VEIN_TYPE_ID_MASK));
+    }
+
+    private static boolean unpackDepleted(short packedOreVein) {
+        return (packedOreVein & DEPLETED_FLAG) != 0;
+    }
+
+    /**
+     * Saves changed or new ore chunks to be appended to the journal. Must not be called by multiple threads at once.
+     * Puts continue in the meantime, the ones that are missed are saved next time.
+     */
+    public synchronized ByteBuffer saveOreChunks() {
+        for (long tileKey : unsavedTiles) {
+            unsavedTiles.remove(tileKey);
+            final OreVeinTile tile = residentTiles.get(tileKey);
+            if (tile != null) {
+                tile.takeUnsavedOreChunks(tileKey, savingOreChunks);
+            }
+        }
+        if (savingOreChunks.isEmpty()) {
+            return null;
+        }
+        journalRecords += savingOreChunks.size();
+        final ByteBuffer byteBuffer = writeOreChunks(savingOreChunks);
+        savingOreChunks.clear();
+        return byteBuffer;
+    }
+
+    /**
+     * Encodes all modified tiles for the next snapshot. All other tiles are copied from the current one. Changes made
+     * while a tile is encoded might be missed, but they are appended to the journal afterwards and replayed on top.
+     */
+    public synchronized Map<Long, ByteBuffer> saveModifiedOreTiles() {
+        final Map<Long, ByteBuffer> tiles = new HashMap<>();
+        for (Map.Entry<Long, OreVeinTile> entry : residentTiles.entrySet()) {
+            final OreVeinTile tile = entry.getValue();
+            if (tile.isModified()) {
+                // Taken first, so a change during encoding keeps the tile modified
+                final int version = tile.version.get();
+                tiles.put(entry.getKey(), encodeTile(tile.toArray()));
+                compactingTiles.put(entry.getKey(), version);
+            }
+        }
+        return tiles;
+    }
 
-                byteBuffer.putInt(oreVeinPosition.chunkX); // << WARNING! This code is not null-safe!
-                byteBuffer.putInt(oreVeinPosition.chunkZ);
-                short veinTypeId = VeinTypeCaching.getVeinTypeId(oreVeinPosition.veinType);
-                if (oreVeinPosition.isDepleted()) {
-                    veinTypeId |= 0x8000;
+    private static ByteBuffer encodeTile(short[] tile) {
+        final int occupiedChunks = countOccupiedChunks(tile);
+        if (occupiedChunks == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(TILE_BITMAP_BYTES + occupiedChunks * Short.BYTES);
+        for (int firstChunk = 0; firstChunk < CHUNKS_PER_TILE; firstChunk += Long.SIZE) {
+            long occupancy = 0;
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                if (tile[firstChunk + bit] != NO_ORE_CHUNK) {
+                    occupancy |= 1L << bit;
                 }
-                byteBuffer.putShort(veinTypeId);
-            });
-            changedOrNewOreChunks.clear();
-            byteBuffer.flip();
-            return byteBuffer;
+            }
+            byteBuffer.putLong(occupancy);
         }
-        return null;
+        for (short packedOreVein : tile) {
+            if (packedOreVein != NO_ORE_CHUNK) {
+                byteBuffer.putShort(packedOreVein);
+            }
+        }
+        byteBuffer.flip();
+        return byteBuffer;
     }
 
+    private static short[] decodeTile(ByteBuffer byteBuffer) {
+        final short[] tile = new short[CHUNKS_PER_TILE];
+        int valuePosition = TILE_BITMAP_BYTES;
+        for (int firstChunk = 0; firstChunk < CHUNKS_PER_TILE; firstChunk += Long.SIZE) {
+            long occupancy = byteBuffer.getLong(firstChunk / Byte.SIZE);
+            while (occupancy != 0 && valuePosition + Short.BYTES <= byteBuffer.limit()) {
+                tile[firstChunk + Long.numberOfTrailingZeros(occupancy)] = byteBuffer.getShort(valuePosition);
+                valuePosition += Short.BYTES;
+                occupancy &= occupancy - 1;
+            }
+        }
+        return tile;
+    }
+
+    private static int countOccupiedChunks(short[] tile) {
+        int occupiedChunks = 0;
+        for (short packedOreVein : tile) {
+            if (packedOreVein != NO_ORE_CHUNK) {
+                occupiedChunks++;
+            }
+        }
+        return occupiedChunks;
+    }
+
+    private static int getStoredTileRecords(int tileLength) {
+        return Math.max(0, (tileLength - TILE_BITMAP_BYTES) / Short.BYTES);
+    }
+
+    private static ByteBuffer writeOreChunks(LongShortHashMap oreChunksToWrite) {
+        // Create a buffer of appropriate size
+        final ByteBuffer byteBuffer = ByteBuffer
+                .allocate(oreChunksToWrite.size() * (2 * Integer.BYTES + Short.BYTES));
+
+        // The values are already in their on disk representation
+        oreChunksToWrite.forEach((key, packedOreVein) -> {
+            byteBuffer.putInt(Utils.keyToChunkX(key));
+            byteBuffer.putInt(Utils.keyToChunkZ(key));
+            byteBuffer.putShort(packedOreVein);
+        });
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+    // Saves changed or new underground fluids to be appended to the journal. Must not be called by multiple threads at
+    // once
     public ByteBuffer saveUndergroundFluids() {
-        if (!changedOrNewUndergroundFluids.isEmpty()) {
-            final int initialCapacity = changedOrNewUndergroundFluids.size() * (Long.BYTES
-                    + Integer.BYTES * (8 + VP.undergroundFluidSizeChunkX * VP.undergroundFluidSizeChunkZ));
-            try (final ByteArrayOutputStream baos = new ByteArrayOutputStream(initialCapacity);
-                    final DataOutputStream dos = new DataOutputStream(baos)) {
-                for (ChunkCoordIntPair changedOrNewUndergroundFluid : changedOrNewUndergroundFluids) {
-                    UndergroundFluidPosition undergroundFluidPosition = undergroundFluids
-                            .get(changedOrNewUndergroundFluid);
-                    dos.writeInt(undergroundFluidPosition.chunkX);
-                    dos.writeInt(undergroundFluidPosition.chunkZ);
-                    byte[] fluidNameBytes = undergroundFluidPosition.fluid.getName().getBytes(StandardCharsets.UTF_8);
-                    // Negative to keep backwards compat with int fluidID written here before.
-                    dos.writeInt(-fluidNameBytes.length);
-                    dos.write(fluidNameBytes);
-                    for (int offsetChunkX = 0; offsetChunkX < VP.undergroundFluidSizeChunkX; offsetChunkX++) {
-                        for (int offsetChunkZ = 0; offsetChunkZ < VP.undergroundFluidSizeChunkZ; offsetChunkZ++) {
-                            dos.writeInt(undergroundFluidPosition.chunks[offsetChunkX][offsetChunkZ]);
-                        }
+        final Map<ChunkCoordIntPair, UndergroundFluidPosition> undergroundFluidsToSave;
+        synchronized (this) {
+            if (changedOrNewUndergroundFluids.isEmpty()) {
+                return null;
+            }
+            undergroundFluidsToSave = changedOrNewUndergroundFluids;
+            changedOrNewUndergroundFluids = savingUndergroundFluids;
+            journalRecords += undergroundFluidsToSave.size();
+        }
+        final ByteBuffer byteBuffer = writeUndergroundFluids(undergroundFluidsToSave.values());
+        undergroundFluidsToSave.clear();
+        synchronized (this) {
+            savingUndergroundFluids = undergroundFluidsToSave;
+        }
+        return byteBuffer;
+    }
+
+    // Split into blocks that can be read on their own
+    public synchronized List<ByteBuffer> saveAllUndergroundFluids() {
+        final List<UndergroundFluidPosition> sortedUndergroundFluids = new ArrayList<>(undergroundFluids.values());
+        sortedUndergroundFluids.sort(UNDERGROUND_FLUID_ORDER);
+        final List<ByteBuffer> blocks = new ArrayList<>();
+        for (int first = 0; first < sortedUndergroundFluids.size(); first += UNDERGROUND_FLUIDS_PER_BLOCK) {
+            final int last = Math.min(first + UNDERGROUND_FLUIDS_PER_BLOCK, sortedUndergroundFluids.size());
+            blocks.add(writeUndergroundFluids(sortedUndergroundFluids.subList(first, last)));
+        }
+        return blocks;
+    }
+
+    /**
+     * Records are sorted by position and encoded as varints: int magic, byte version, a dictionary of all fluid names
+     * and the record count. Per record follow the zig-zag deltas of the field coordinates to the previous record, the
+     * dictionary index of the fluid and the zig-zag deltas between consecutive chunk amounts.
+     */
+    private static ByteBuffer writeUndergroundFluids(Collection<UndergroundFluidPosition> undergroundFluidsToWrite) {
+        final List<UndergroundFluidPosition> sortedUndergroundFluids = new ArrayList<>(undergroundFluidsToWrite);
+        sortedUndergroundFluids.sort(UNDERGROUND_FLUID_ORDER);
+        final Map<String, Integer> fluidNameIds = new LinkedHashMap<>();
+        for (UndergroundFluidPosition undergroundFluidPosition : sortedUndergroundFluids) {
+            fluidNameIds.putIfAbsent(undergroundFluidPosition.fluid.getName(), fluidNameIds.size());
+        }
+
+        final int initialCapacity = sortedUndergroundFluids.size()
+                * (Integer.BYTES + VP.undergroundFluidSizeChunkX * VP.undergroundFluidSizeChunkZ * 2);
+        try (final ByteArrayOutputStream baos = new ByteArrayOutputStream(initialCapacity);
+                final DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(UNDERGROUND_FLUIDS_MAGIC);
+            dos.writeByte(UNDERGROUND_FLUIDS_VERSION);
+            Utils.writeVarInt(dos, fluidNameIds.size());
+            for (String fluidName : fluidNameIds.keySet()) {
+                final byte[] fluidNameBytes = fluidName.getBytes(StandardCharsets.UTF_8);
+                Utils.writeVarInt(dos, fluidNameBytes.length);
+                dos.write(fluidNameBytes);
+            }
+            Utils.writeVarInt(dos, sortedUndergroundFluids.size());
+            int previousFieldX = 0;
+            int previousFieldZ = 0;
+            for (UndergroundFluidPosition undergroundFluidPosition : sortedUndergroundFluids) {
+                final int fieldX = Math.floorDiv(undergroundFluidPosition.chunkX, VP.undergroundFluidSizeChunkX);
+                final int fieldZ = Math.floorDiv(undergroundFluidPosition.chunkZ, VP.undergroundFluidSizeChunkZ);
+                Utils.writeVarInt(dos, Utils.encodeZigZag(fieldX - previousFieldX));
+                Utils.writeVarInt(dos, Utils.encodeZigZag(fieldZ - previousFieldZ));
+                previousFieldX = fieldX;
+                previousFieldZ = fieldZ;
+                Utils.writeVarInt(dos, fluidNameIds.get(undergroundFluidPosition.fluid.getName()));
+                // Neighbouring chunks hold similar amounts
+                int previousAmount = 0;
+                for (int offsetChunkX = 0; offsetChunkX < VP.undergroundFluidSizeChunkX; offsetChunkX++) {
+                    for (int offsetChunkZ = 0; offsetChunkZ < VP.undergroundFluidSizeChunkZ; offsetChunkZ++) {
+                        final int amount = undergroundFluidPosition.chunks[offsetChunkX][offsetChunkZ];
+                        Utils.writeVarInt(dos, Utils.encodeZigZag(amount - previousAmount));
+                        previousAmount = amount;
                     }
                 }
-                changedOrNewUndergroundFluids.clear();
-                return ByteBuffer.wrap(baos.toByteArray());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return null;
-    }
-
-    public void loadCache(ByteBuffer oreChunksBuffer, ByteBuffer undergroundFluidsBuffer) {
-        if (oreChunksBuffer != null) {
-            while (oreChunksBuffer.remaining() >= Integer.BYTES * 2 + Short.BYTES) {
-                final int chunkX = oreChunksBuffer.getInt();
-                final int chunkZ = oreChunksBuffer.getInt();
-                final short veinTypeId = oreChunksBuffer.getShort();
-                final boolean depleted = (veinTypeId & 0x8000) > 0;
-                final VeinType veinType = VeinTypeCaching.getVeinType((short) (veinTypeId & 0x7FFF));
-                oreChunks.put(
-                        getOreVeinKey(chunkX, chunkZ),
-                        new OreVeinPosition(dimensionId, chunkX, chunkZ, veinType, depleted));
-            }
-        }
-        if (undergroundFluidsBuffer != null) {
-            while (undergroundFluidsBuffer.remaining()
-                    >= Integer.BYTES * (3 + VP.undergroundFluidSizeChunkX * VP.undergroundFluidSizeChunkZ)) {
-                final int chunkX = undergroundFluidsBuffer.getInt();
-                final int chunkZ = undergroundFluidsBuffer.getInt();
-                final int fluidIDorNameLength = undergroundFluidsBuffer.getInt();
-                final Fluid fluid;
-                if (fluidIDorNameLength < 0) { // name length
-                    byte[] fluidNameBytes = new byte[-fluidIDorNameLength];
-                    undergroundFluidsBuffer.get(fluidNameBytes);
-                    String fluidName = new String(fluidNameBytes, StandardCharsets.UTF_8);
-                    fluid = FluidRegistry.getFluid(fluidName);
-                } else { // ID (legacy save format)
-                    fluid = FluidRegistry.getFluid(fluidIDorNameLength);
+            }
+            dos.flush();
+            return ByteBuffer.wrap(baos.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // The snapshot taken by saveModifiedOreTiles() and saveAllUndergroundFluids() replaces all records stored so far
+    // once the compaction writes it
+    public synchronized void onSnapshotSaved() {
+        compactingSnapshotRecords = oreChunkCount.intValue() + undergroundFluids.size();
+        compactedJournalRecords = journalRecords;
+    }
+
+    // The snapshot on disk still holds the old tiles and records until the compaction is done. A failed compaction
+    // leaves the counts as they are, so it is tried again
+    public synchronized void onCompactionFinished(boolean succeeded) {
+        if (succeeded) {
+            for (Map.Entry<Long, Integer> entry : compactingTiles.entrySet()) {
+                final OreVeinTile tile = residentTiles.get(entry.getKey());
+                if (tile != null) {
+                    tile.snapshotVersion = entry.getValue();
+                    if (tile.isModified() == false) {
+                        evictableTiles.add(entry.getKey());
+                    }
                 }
+            }
+            snapshotRecords = compactingSnapshotRecords;
+            // Records journaled while the compaction ran are kept on top of the new snapshot
+            journalRecords -= compactedJournalRecords;
+            hasFlatSnapshot = false;
+        }
+        compactingTiles.clear();
+    }
+
+    /**
+     * A compaction is due if the journal grew too large compared to the snapshot, or if the stored records contain too
+     * many outdated duplicates. The latter is the case for files written before journaling was introduced.
+     */
+    public synchronized boolean needsCompaction() {
+        final int liveRecords = oreChunkCount.intValue() + undergroundFluids.size();
+        final int outdatedRecords = snapshotRecords + journalRecords - liveRecords;
+        // Flat snapshots are converted right away, otherwise all their tiles stay in memory
+        return hasFlatSnapshot || (journalRecords >= MIN_RECORDS_FOR_COMPACTION
+                && journalRecords * 100L > (long) snapshotRecords * Config.cacheCompactionThreshold)
+                || (outdatedRecords >= MIN_RECORDS_FOR_COMPACTION
+                        && outdatedRecords * 100L > (long) liveRecords * Config.cacheCompactionThreshold);
+    }
+
+    /**
+     * Attaches the stored ore chunks of this dimension. Only the tile index is read right away, except for tiles that
+     * are changed by the journal. Ore chunks that were put before are kept on top of the stored ones.
+     */
+    public synchronized void loadOreChunks(TiledCacheFile oreVeinFile) {
+        // Puts wait for the lock until the stored tiles are loaded
+        final LongShortHashMap unsavedOreChunks = new LongShortHashMap(NO_ORE_CHUNK);
+        for (Map.Entry<Long, OreVeinTile> entry : residentTiles.entrySet()) {
+            entry.getValue().retire();
+            entry.getValue().takeUnsavedOreChunks(entry.getKey(), unsavedOreChunks);
+        }
+        residentTiles.clear();
+        evictableTiles.clear();
+        absentTiles.clear();
+        unsavedTiles.clear();
+        this.oreVeinFile = oreVeinFile;
+        oreVeinFile.load(this::loadOreChunks);
+
+        oreChunkCount.reset();
+        for (Map.Entry<Long, Integer> entry : oreVeinFile.getTileLengths().entrySet()) {
+            final int storedTileRecords = getStoredTileRecords(entry.getValue());
+            snapshotRecords += storedTileRecords;
+            if (residentTiles.containsKey(entry.getKey()) == false) {
+                oreChunkCount.add(storedTileRecords);
+            }
+        }
+        for (OreVeinTile tile : residentTiles.values()) {
+            oreChunkCount.add(tile.countOreChunks());
+        }
+        unsavedOreChunks.forEach(this::setOreChunk);
+    }
+
+    // Parses flat records straight from the given buffer, which might be a view into a memory-mapped file
+    private void loadOreChunks(ByteBuffer oreChunksBuffer, boolean fromJournal) {
+        int records = 0;
+        while (oreChunksBuffer.remaining() >= Integer.BYTES * 2 + Short.BYTES) {
+            final int chunkX = oreChunksBuffer.getInt();
+            final int chunkZ = oreChunksBuffer.getInt();
+            final long key = getOreVeinKey(chunkX, chunkZ);
+            final long tileKey = getTileKey(key);
+            // Tombstones clear the ore chunk in the same way. The tile now differs from the snapshot
+            final OreVeinTile tile = getTile(tileKey, true);
+            tile.set(getIndexInTile(key), oreChunksBuffer.getShort());
+            tile.version.incrementAndGet();
+            records++;
+        }
+        hasFlatSnapshot |= fromJournal == false;
+        countLoadedRecords(records, fromJournal);
+    }
+
+    // A snapshot might consist of multiple encoded blocks in a row
+    public synchronized void loadUndergroundFluids(ByteBuffer undergroundFluidsBuffer, boolean fromJournal) {
+        int records = 0;
+        while (undergroundFluidsBuffer.remaining() >= Integer.BYTES
+                && undergroundFluidsBuffer.getInt(undergroundFluidsBuffer.position()) == UNDERGROUND_FLUIDS_MAGIC) {
+            records += loadEncodedUndergroundFluids(undergroundFluidsBuffer);
+        }
+        records += loadLegacyUndergroundFluids(undergroundFluidsBuffer);
+        countLoadedRecords(records, fromJournal);
+    }
+
+    private int loadEncodedUndergroundFluids(ByteBuffer undergroundFluidsBuffer) {
+        int records = 0;
+        try {
+            undergroundFluidsBuffer.getInt();
+            final byte version = undergroundFluidsBuffer.get();
+            if (version != UNDERGROUND_FLUIDS_VERSION) {
+                VP.warn("Skipping underground fluids of dimension " + dimensionId + " with unknown version " + version);
+                undergroundFluidsBuffer.position(undergroundFluidsBuffer.limit());
+                return 0;
+            }
+            final Fluid[] fluids = new Fluid[Utils.readVarInt(undergroundFluidsBuffer)];
+            for (int fluidId = 0; fluidId < fluids.length; fluidId++) {
+                final byte[] fluidNameBytes = new byte[Utils.readVarInt(undergroundFluidsBuffer)];
+                undergroundFluidsBuffer.get(fluidNameBytes);
+                fluids[fluidId] = FluidRegistry.getFluid(new String(fluidNameBytes, StandardCharsets.UTF_8));
+            }
+            final int recordCount = Utils.readVarInt(undergroundFluidsBuffer);
+            int fieldX = 0;
+            int fieldZ = 0;
+            for (; records < recordCount; records++) {
+                fieldX += Utils.decodeZigZag(Utils.readVarInt(undergroundFluidsBuffer));
+                fieldZ += Utils.decodeZigZag(Utils.readVarInt(undergroundFluidsBuffer));
+                final int fluidId = Utils.readVarInt(undergroundFluidsBuffer);
                 final int[][] chunks = new int[VP.undergroundFluidSizeChunkX][VP.undergroundFluidSizeChunkZ];
+                int amount = 0;
                 for (int offsetChunkX = 0; offsetChunkX < VP.undergroundFluidSizeChunkX; offsetChunkX++) {
                     for (int offsetChunkZ = 0; offsetChunkZ < VP.undergroundFluidSizeChunkZ; offsetChunkZ++) {
-                        chunks[offsetChunkX][offsetChunkZ] = undergroundFluidsBuffer.getInt();
+                        amount += Utils.decodeZigZag(Utils.readVarInt(undergroundFluidsBuffer));
+                        chunks[offsetChunkX][offsetChunkZ] = amount;
                     }
                 }
+                final Fluid fluid = fluidId < fluids.length ? fluids[fluidId] : null;
                 if (fluid != null) {
+                    final int chunkX = fieldX * VP.undergroundFluidSizeChunkX;
+                    final int chunkZ = fieldZ * VP.undergroundFluidSizeChunkZ;
                     undergroundFluids.put(
                             getUndergroundFluidKey(chunkX, chunkZ),
                             new UndergroundFluidPosition(dimensionId, chunkX, chunkZ, fluid, chunks));
                 }
             }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            VP.warn("Discarding corrupt underground fluid records of dimension " + dimensionId);
+            undergroundFluidsBuffer.position(undergroundFluidsBuffer.limit());
         }
+        return records;
     }
 
-    private ChunkCoordIntPair getOreVeinKey(int chunkX, int chunkZ) {
-        return new ChunkCoordIntPair(Utils.mapToCenterOreChunkCoord(chunkX), Utils.mapToCenterOreChunkCoord(chunkZ));
+    // Records written before the varint encoding, each holding its fluid name or legacy fluid id
+    private int loadLegacyUndergroundFluids(ByteBuffer undergroundFluidsBuffer) {
+        int records = 0;
+        while (undergroundFluidsBuffer.remaining()
+                >= Integer.BYTES * (3 + VP.undergroundFluidSizeChunkX * VP.undergroundFluidSizeChunkZ)) {
+            final int chunkX = undergroundFluidsBuffer.getInt();
+            final int chunkZ = undergroundFluidsBuffer.getInt();
+            final int fluidIDorNameLength = undergroundFluidsBuffer.getInt();
+            final Fluid fluid;
+            if (fluidIDorNameLength < 0) { // name length
+                byte[] fluidNameBytes = new byte[-fluidIDorNameLength];
+                undergroundFluidsBuffer.get(fluidNameBytes);
+                String fluidName = new String(fluidNameBytes, StandardCharsets.UTF_8);
+                fluid = FluidRegistry.getFluid(fluidName);
+            } else { // ID (legacy save format)
+                fluid = FluidRegistry.getFluid(fluidIDorNameLength);
+            }
+            final int[][] chunks = new int[VP.undergroundFluidSizeChunkX][VP.undergroundFluidSizeChunkZ];
+            for (int offsetChunkX = 0; offsetChunkX < VP.undergroundFluidSizeChunkX; offsetChunkX++) {
+                for (int offsetChunkZ = 0; offsetChunkZ < VP.undergroundFluidSizeChunkZ; offsetChunkZ++) {
+                    chunks[offsetChunkX][offsetChunkZ] = undergroundFluidsBuffer.getInt();
+                }
+            }
+            if (fluid != null) {
+                undergroundFluids.put(
+                        getUndergroundFluidKey(chunkX, chunkZ),
+                        new UndergroundFluidPosition(dimensionId, chunkX, chunkZ, fluid, chunks));
+            }
+            records++;
+        }
+        return records;
     }
 
-    public UpdateResult putOreVein(final OreVeinPosition oreVeinPosition) {
+    private void countLoadedRecords(int records, boolean fromJournal) {
+        if (fromJournal) {
+            journalRecords += records;
+        } else {
+            snapshotRecords += records;
+        }
+    }
 
-        final ChunkCoordIntPair key = getOreVeinKey(oreVeinPosition.chunkX, oreVeinPosition.chunkZ);
-        if (!oreChunks.containsKey(key)) {
+    private static long getOreVeinKey(int chunkX, int chunkZ) {
+        return Utils.chunkCoordsToKey(Utils.mapToCenterOreChunkCoord(chunkX), Utils.mapToCenterOreChunkCoord(chunkZ));
+    }
 
-            oreChunks.put(key, oreVeinPosition);
-            changedOrNewOreChunks.add(key);
-            return UpdateResult.New;
+    private static long getTileKey(long key) {
+        return Utils.chunkCoordsToKey(Utils.keyToChunkX(key) >> TILE_SHIFT, Utils.keyToChunkZ(key) >> TILE_SHIFT);
+    }
+
+    private static int getIndexInTile(long key) {
+        return ((Utils.keyToChunkX(key) & TILE_MASK) << TILE_SHIFT) | (Utils.keyToChunkZ(key) & TILE_MASK);
+    }
+
+    private static long getKeyInTile(long tileKey, int indexInTile) {
+        return Utils.chunkCoordsToKey(
+                (Utils.keyToChunkX(tileKey) << TILE_SHIFT) | (indexInTile >> TILE_SHIFT),
+                (Utils.keyToChunkZ(tileKey) << TILE_SHIFT) | (indexInTile & TILE_MASK));
+    }
+
+    /**
+     * Returns the tile from memory or reads it from the snapshot. Least recently used tiles are evicted if there are
+     * too many in memory.
+     *
+     * @param create Whether to create an empty tile if none is stored
+     * @return The tile or null if none is stored and create is false
+     */
+    private synchronized OreVeinTile getTile(long tileKey, boolean create) {
+        OreVeinTile tile = residentTiles.get(tileKey);
+        if (tile != null) {
+            return tile;
+        }
+        final ByteBuffer storedTile = oreVeinFile == null ? null : oreVeinFile.readTile(tileKey);
+        if (storedTile != null) {
+            tile = new OreVeinTile(tileKey, decodeTile(storedTile));
+        } else if (create) {
+            tile = new OreVeinTile(tileKey);
+        } else {
+            if (absentTiles.size() >= MAX_ABSENT_TILES) {
+                absentTiles.clear();
+            }
+            absentTiles.add(tileKey);
+            return null;
         }
+        tile.lastAccess = ++accessClock;
+        // Added before it is no longer absent, so lookups in between still find no ore veins
+        residentTiles.put(tileKey, tile);
+        absentTiles.remove(tileKey);
+        evictableTiles.add(tileKey);
+        evictTiles(tileKey);
+        return tile;
+    }
 
-        final OreVeinPosition storedOreVeinPosition = oreChunks.get(key);
-        if (storedOreVeinPosition.veinType != oreVeinPosition.veinType) {
+    // Looks up resident tiles without locking
+    private OreVeinTile findTile(long tileKey) {
+        final OreVeinTile tile = residentTiles.get(tileKey);
+        if (tile != null) {
+            tile.markAccessed(accessClock);
+            return tile;
+        }
+        return absentTiles.contains(tileKey) ? null : getTile(tileKey, false);
+    }
 
-            oreChunks.put(key, oreVeinPosition.joinDepletedState(storedOreVeinPosition));
-            changedOrNewOreChunks.add(key);
-            return UpdateResult.New;
+    // Returns the tile with a pin that must be released again or null if none is stored and create is false
+    private OreVeinTile pinTile(long tileKey, boolean create) {
+        while (true) {
+            OreVeinTile tile = residentTiles.get(tileKey);
+            if (tile == null) {
+                tile = getTile(tileKey, create);
+                if (tile == null) {
+                    return null;
+                }
+            }
+            if (tile.tryPin()) {
+                tile.markAccessed(accessClock);
+                return tile;
+            }
+            // The tile is evicted or replaced right now, the next lookup finds it gone or its replacement
+            Thread.yield();
+        }
+    }
+
+    // Evicts down to a fraction below the limit, so the tiles are not sorted again with every load
+    private void evictTiles(long keepTileKey) {
+        // Without a file evicted tiles could not be read again
+        if (oreVeinFile == null || residentTiles.size() <= Config.cacheTilesPerDimension) {
+            return;
+        }
+        // The access times are copied first, since puts keep updating them while the tiles are sorted
+        final long[] tileKeys = new long[evictableTiles.size()];
+        final long[] accessOrder = new long[tileKeys.length];
+        int numberOfTiles = 0;
+        for (Iterator<Long> iterator = evictableTiles.iterator(); iterator.hasNext();) {
+            final long tileKey = iterator.next();
+            final OreVeinTile tile = residentTiles.get(tileKey);
+            // Modified tiles only become evictable again once a compaction stored them
+            if (tile == null || tile.isModified()) {
+                iterator.remove();
+            } else if (tileKey != keepTileKey && compactingTiles.containsKey(tileKey) == false) {
+                tileKeys[numberOfTiles] = tileKey;
+                accessOrder[numberOfTiles] = ((long) tile.lastAccess << 32) | numberOfTiles;
+                numberOfTiles++;
+            }
+        }
+        if (numberOfTiles == 0) {
+            return;
+        }
+        Arrays.sort(accessOrder, 0, numberOfTiles);
+
+        int excessTiles = residentTiles.size() - Config.cacheTilesPerDimension
+                + Config.cacheTilesPerDimension / EVICTED_TILES_FRACTION;
+        for (int index = 0; index < numberOfTiles && excessTiles > 0; index++) {
+            final long tileKey = tileKeys[(int) accessOrder[index]];
+            if (residentTiles.get(tileKey).tryRetireUnmodified()) {
+                residentTiles.remove(tileKey);
+                evictableTiles.remove(tileKey);
+                excessTiles--;
+            }
+        }
+    }
+
+    private short getOreChunk(long key) {
+        final OreVeinTile tile = findTile(getTileKey(key));
+        return tile == null ? NO_ORE_CHUNK : tile.get(getIndexInTile(key));
+    }
+
+    // Counts the change and marks it for the journal. The tile must be pinned or not be resident yet
+    private void onOreChunkChanged(long tileKey, OreVeinTile tile, int indexInTile, short previousOreVein,
+            short packedOreVein) {
+        if (previousOreVein == NO_ORE_CHUNK) {
+            oreChunkCount.increment();
+        } else if (packedOreVein == NO_ORE_CHUNK) {
+            oreChunkCount.decrement();
+        }
+        tile.version.incrementAndGet();
+        if (tile.markUnsaved(indexInTile)) {
+            unsavedTiles.add(tileKey);
+        }
+    }
+
+    // NO_ORE_CHUNK removes the ore chunk and is saved as a tombstone
+    private void setOreChunk(long key, short packedOreVein) {
+        final long tileKey = getTileKey(key);
+        final OreVeinTile tile = pinTile(tileKey, true);
+        try {
+            final int indexInTile = getIndexInTile(key);
+            final short previousOreVein = tile.getAndSet(indexInTile, packedOreVein);
+            if (previousOreVein != packedOreVein) {
+                onOreChunkChanged(tileKey, tile, indexInTile, previousOreVein, packedOreVein);
+            }
+        } finally {
+            tile.unpin();
         }
-        return UpdateResult.AlreadyKnown;
     }
 
     /**
-     * Reset selected veins; these veins need not be present. Input coords are in chunk coordinates, NOT block coords.
-     * Will not error on bad input, but it also probably won't do anything useful.
-     * 
-     * @param startX The X coord of the starting chunk. Must be less than endX.
-     * @param startZ The Z coord of the starting chunk. Must be less than endZ.
-     * @param endX   The X coord of the ending chunk.
-     * @param endZ   The Z coord of the ending chunk.
+     * Compare-and-set on the chunk, so concurrent puts never lock and never lose each other's changes. Only the put
+     * that actually changed the chunk reports it as new.
      */
-    public void clearOreVeins(int startX, int startZ, int endX, int endZ) {
+    public UpdateResult putOreVein(final OreVeinPosition oreVeinPosition) {
 
-        // Remove entries if they fall within the corners
-        oreChunks.entrySet().removeIf(entry -> {
+        final long key = getOreVeinKey(oreVeinPosition.chunkX, oreVeinPosition.chunkZ);
+        final long tileKey = getTileKey(key);
+        final int indexInTile = getIndexInTile(key);
+        final OreVeinTile tile = pinTile(tileKey, true);
+        try {
+            while (true) {
+                final short storedOreVein = tile.get(indexInTile);
+                final short packedOreVein;
+                if (storedOreVein == NO_ORE_CHUNK) {
+                    packedOreVein = packOreVein(oreVeinPosition.veinType, oreVeinPosition.isDepleted());
+                } else if (unpackVeinType(storedOreVein) != oreVeinPosition.veinType) {
+                    packedOreVein = packOreVein(
+                            oreVeinPosition.veinType,
+                            oreVeinPosition.isDepleted() || unpackDepleted(storedOreVein));
+                } else {
+                    return UpdateResult.AlreadyKnown;
+                }
+                if (tile.compareAndSet(indexInTile, storedOreVein, packedOreVein)) {
+                    onOreChunkChanged(tileKey, tile, indexInTile, storedOreVein, packedOreVein);
+                    return UpdateResult.New;
+                }
+            }
+        } finally {
+            tile.unpin();
+        }
+    }
 
-            // Get the value
-            OreVeinPosition val = entry.getValue();
+    /**
+     * Reset selected veins; these veins need not be present. Input coords are in chunk coordinates, NOT block coords.
+     * Will not error on bad input, but it also probably won't do anything useful. startChunks should be less than their
+     * respective endChunks. Every removed vein is saved as a tombstone, so the removal survives a reload.
+     */
+    public synchronized void clearOreVeins(int startChunkX, int startChunkZ, int endChunkX, int endChunkZ) {
 
-            // Check X & Z
-            return (val.chunkX >= startX && val.chunkX <= endX) && (val.chunkZ >= startZ && val.chunkZ <= endZ);
-        });
+        // Only tiles overlapping the corners are visited, stored and in memory ones alike. Small areas like a single
+        // region are enumerated directly instead of filtering every known tile
+        final int startTileX = startChunkX >> TILE_SHIFT;
+        final int startTileZ = startChunkZ >> TILE_SHIFT;
+        final int endTileX = endChunkX >> TILE_SHIFT;
+        final int endTileZ = endChunkZ >> TILE_SHIFT;
+        final Set<Long> tileKeys = new HashSet<>();
+        if ((long) (endTileX - startTileX + 1) * (endTileZ - startTileZ + 1) <= MAX_ENUMERATED_TILES) {
+            for (int tileX = startTileX; tileX <= endTileX; tileX++) {
+                for (int tileZ = startTileZ; tileZ <= endTileZ; tileZ++) {
+                    tileKeys.add(Utils.chunkCoordsToKey(tileX, tileZ));
+                }
+            }
+        } else {
+            tileKeys.addAll(residentTiles.keySet());
+            if (oreVeinFile != null) {
+                tileKeys.addAll(oreVeinFile.getTileLengths().keySet());
+            }
+        }
+        for (long tileKey : tileKeys) {
+            final int tileX = Utils.keyToChunkX(tileKey);
+            final int tileZ = Utils.keyToChunkZ(tileKey);
+            if (tileX < startTileX || tileX > endTileX || tileZ < startTileZ || tileZ > endTileZ) {
+                continue;
+            }
+            final OreVeinTile tile = pinTile(tileKey, false);
+            if (tile == null) {
+                continue;
+            }
+            try {
+                for (int indexInTile = 0; indexInTile < CHUNKS_PER_TILE; indexInTile++) {
+                    final long key = getKeyInTile(tileKey, indexInTile);
+                    final int chunkX = Utils.keyToChunkX(key);
+                    final int chunkZ = Utils.keyToChunkZ(key);
+                    final boolean withinX = chunkX >= startChunkX && chunkX <= endChunkX;
+                    final boolean withinZ = chunkZ >= startChunkZ && chunkZ <= endChunkZ;
+                    if (withinX && withinZ) {
+                        final short previousOreVein = tile.getAndSet(indexInTile, NO_ORE_CHUNK);
+                        if (previousOreVein != NO_ORE_CHUNK) {
+                            onOreChunkChanged(tileKey, tile, indexInTile, previousOreVein, NO_ORE_CHUNK);
+                        }
+                    }
+                }
+            } finally {
+                tile.unpin();
+            }
+        }
+    }
+
+    /**
+     * Replaces the ore veins of whole regions with the ones of another cache. Each tile is replaced by a changed copy
+     * in one step, so lookups never see a region half replaced. Ore veins that keep their vein type also keep their
+     * depleted flag. A tile covers exactly one region file, so region keys are tile keys.
+     *
+     * @param regionKeys Regions to replace or null to replace all ore veins
+     */
+    public synchronized void replaceOreVeins(Set<Long> regionKeys, DimensionCache source) {
+        synchronized (source) {
+            final Set<Long> tileKeys = new HashSet<>();
+            if (regionKeys != null) {
+                tileKeys.addAll(regionKeys);
+            } else {
+                tileKeys.addAll(residentTiles.keySet());
+                if (oreVeinFile != null) {
+                    tileKeys.addAll(oreVeinFile.getTileLengths().keySet());
+                }
+                tileKeys.addAll(source.residentTiles.keySet());
+                if (source.oreVeinFile != null) {
+                    tileKeys.addAll(source.oreVeinFile.getTileLengths().keySet());
+                }
+            }
+            for (long tileKey : tileKeys) {
+                final OreVeinTile sourceTile = source.getTile(tileKey, false);
+                final OreVeinTile tile = getTile(tileKey, sourceTile != null);
+                if (tile == null) {
+                    continue;
+                }
+                // Puts to the old tile are done before it is copied, later ones go to the replacement
+                tile.retire();
+                final OreVeinTile replacement = tile.copy();
+                for (int indexInTile = 0; indexInTile < CHUNKS_PER_TILE; indexInTile++) {
+                    final short storedOreVein = replacement.get(indexInTile);
+                    final short replacingOreVein = sourceTile == null ? NO_ORE_CHUNK : sourceTile.get(indexInTile);
+                    final boolean isSameVeinType = storedOreVein != NO_ORE_CHUNK && replacingOreVein != NO_ORE_CHUNK
+                            && unpackVeinType(storedOreVein) == unpackVeinType(replacingOreVein);
+                    if (storedOreVein != replacingOreVein && isSameVeinType == false) {
+                        replacement.set(indexInTile, replacingOreVein);
+                        onOreChunkChanged(tileKey, replacement, indexInTile, storedOreVein, replacingOreVein);
+                    }
+                }
+                residentTiles.put(tileKey, replacement);
+                evictableTiles.add(tileKey);
+            }
+        }
     }
 
     public void toggleOreVein(int chunkX, int chunkZ) {
-        final ChunkCoordIntPair key = getOreVeinKey(chunkX, chunkZ);
-        if (oreChunks.containsKey(key)) {
-            oreChunks.get(key).toggleDepleted();
-            changedOrNewOreChunks.add(key);
+        final long key = getOreVeinKey(chunkX, chunkZ);
+        final long tileKey = getTileKey(key);
+        final int indexInTile = getIndexInTile(key);
+        final OreVeinTile tile = pinTile(tileKey, false);
+        if (tile == null) {
+            return;
         }
+        try {
+            short storedOreVein;
+            do {
+                storedOreVein = tile.get(indexInTile);
+                if (storedOreVein == NO_ORE_CHUNK) {
+                    return;
+                }
+            } while (tile.compareAndSet(indexInTile, storedOreVein, (short) (storedOreVein ^ DEPLETED_FLAG)) == false);
+            onOreChunkChanged(tileKey, tile, indexInTile, storedOreVein, (short) (storedOreVein ^ DEPLETED_FLAG));
+        } finally {
+            tile.unpin();
+        }
+    }
+
+    // Allocation free lookup for hot paths that only need the vein type
+    public VeinType getOreVeinType(int chunkX, int chunkZ) {
+        final short storedOreVein = getOreChunk(getOreVeinKey(chunkX, chunkZ));
+        return storedOreVein == NO_ORE_CHUNK ? VeinType.NO_VEIN : unpackVeinType(storedOreVein);
     }
 
     public OreVeinPosition getOreVein(int chunkX, int chunkZ) {
-        final ChunkCoordIntPair key = getOreVeinKey(chunkX, chunkZ);
-        return oreChunks.getOrDefault(key, new OreVeinPosition(dimensionId, chunkX, chunkZ, VeinType.NO_VEIN, true));
+        final short storedOreVein = getOreChunk(getOreVeinKey(chunkX, chunkZ));
+        if (storedOreVein == NO_ORE_CHUNK) {
+            return new OreVeinPosition(dimensionId, chunkX, chunkZ, VeinType.NO_VEIN, true);
+        }
+        return new OreVeinPosition(
+                dimensionId,
+                chunkX,
+                chunkZ,
+                unpackVeinType(storedOreVein),
+                unpackDepleted(storedOreVein));
     }
 
     private ChunkCoordIntPair getUndergroundFluidKey(int chunkX, int chunkZ) {
@@ -202,51 +1078,62 @@ public class DimensionCache {
                 Utils.mapToCornerUndergroundFluidChunkCoord(chunkZ));
     }
 
-    public UpdateResult putUndergroundFluid(final UndergroundFluidPosition undergroundFluid) {
+    public synchronized UpdateResult putUndergroundFluid(final UndergroundFluidPosition undergroundFluid) {
         final ChunkCoordIntPair key = getUndergroundFluidKey(undergroundFluid.chunkX, undergroundFluid.chunkZ);
         if (undergroundFluids.containsKey(key) == false) {
-            changedOrNewUndergroundFluids.add(key);
+            changedOrNewUndergroundFluids.put(key, undergroundFluid);
             undergroundFluids.put(key, undergroundFluid);
             return UpdateResult.New;
         } else if (undergroundFluids.get(key).equals(undergroundFluid) == false) {
-            changedOrNewUndergroundFluids.add(key);
+            changedOrNewUndergroundFluids.put(key, undergroundFluid);
             undergroundFluids.put(key, undergroundFluid);
             return UpdateResult.Updated;
         }
         return UpdateResult.AlreadyKnown;
     }
 
-    public UndergroundFluidPosition getUndergroundFluid(int chunkX, int chunkZ) {
+    public synchronized UndergroundFluidPosition getUndergroundFluid(int chunkX, int chunkZ) {
         final ChunkCoordIntPair key = getUndergroundFluidKey(chunkX, chunkZ);
         return undergroundFluids
                 .getOrDefault(key, UndergroundFluidPosition.getNotProspected(dimensionId, chunkX, chunkZ));
     }
 
-    public Collection<OreVeinPosition> getAllOreVeins() {
-        return oreChunks.values();
+    // Reads all stored tiles without keeping them in memory
+    public synchronized Collection<OreVeinPosition> getAllOreVeins() {
+        final List<OreVeinPosition> oreVeins = new ArrayList<>(oreChunkCount.intValue());
+        for (Map.Entry<Long, OreVeinTile> entry : residentTiles.entrySet()) {
+            addOreVeins(oreVeins, entry.getKey(), entry.getValue().toArray());
+        }
+        if (oreVeinFile != null) {
+            for (long tileKey : oreVeinFile.getTileLengths().keySet()) {
+                if (residentTiles.containsKey(tileKey) == false) {
+                    final ByteBuffer storedTile = oreVeinFile.readTile(tileKey);
+                    if (storedTile != null) {
+                        addOreVeins(oreVeins, tileKey, decodeTile(storedTile));
+                    }
+                }
+            }
+        }
+        return oreVeins;
     }
 
-    public Collection<UndergroundFluidPosition> getAllUndergroundFluids() {
-        return undergroundFluids.values();
+    private void addOreVeins(List<OreVeinPosition> oreVeins, long tileKey, short[] tile) {
+        for (int indexInTile = 0; indexInTile < CHUNKS_PER_TILE; indexInTile++) {
+            final short packedOreVein = tile[indexInTile];
+            if (packedOreVein != NO_ORE_CHUNK) {
+                final long key = getKeyInTile(tileKey, indexInTile);
+                oreVeins.add(
+                        new OreVeinPosition(
+                                dimensionId,
+                                Utils.keyToChunkX(key),
+                                Utils.keyToChunkZ(key),
+                                unpackVeinType(packedOreVein),
+                                unpackDepleted(packedOreVein)));
+            }
+        }
     }
 
-    /**
-     * Reset selected veins; these veins need not be present. Input coords are in chunk coordinates, NOT block coords.
-     * Will not error on bad input, but it also probably won't do anything useful. startChunks should be less than their
-     * respective endChunks.
-     */
-    public void clearOreVeins(int startChunkX, int startChunkZ, int endChunkX, int endChunkZ) {
-
-        // Remove entries if they fall within the corners
-        // This method iterates for each chunk mapped. In many cases, it is probably faster to iterate over chunks in
-        // the area to be cleared instead. i.e. if (chunksInClearArea < totalChunksMapped) {useAltIterator()}. If
-        // someone calls this enough to make it a problem, they can add that.
-        oreChunks.entrySet().removeIf(entry -> {
-
-            OreVeinPosition val = entry.getValue();
-            final boolean withinX = val.chunkX >= startChunkX && val.chunkX <= endChunkX;
-            final boolean withinZ = val.chunkZ >= startChunkZ && val.chunkZ <= endChunkZ;
-            return withinX && withinZ;
-        });
+    public synchronized Collection<UndergroundFluidPosition> getAllUndergroundFluids() {
+        return new ArrayList<>(undergroundFluids.values());
     }
 }
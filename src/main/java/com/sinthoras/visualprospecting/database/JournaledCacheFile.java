@@ -0,0 +1,232 @@
+package com.sinthoras.visualprospecting.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import com.sinthoras.visualprospecting.Config;
+import com.sinthoras.visualprospecting.Utils;
+import com.sinthoras.visualprospecting.VP;
+
+// The stored records of one dimension: a compacted snapshot (DIM<id>) and a journal of appended changes
+// (DIM<id>.journal). Loading replays the journal on top of the snapshot. compact() folds both into a new snapshot.
+public class JournaledCacheFile {
+
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("^DIM(-?\\d+)(\\.journal)?$");
+    private static final String JOURNAL_SUFFIX = ".journal";
+    // Every journal frame is prefixed by its length to detect frames that were torn by a crash
+    private static final int FRAME_HEADER_BYTES = Integer.BYTES;
+    // A compressed snapshot starts with this magic, followed by blocks of (int deflated length, int inflated length,
+    // deflated bytes). It is never a valid chunk coordinate, so it cannot be confused with an uncompressed snapshot
+    private static final int COMPRESSED_MAGIC = 0x56505A42;
+    private static final int BLOCK_HEADER_BYTES = Integer.BYTES * 2;
+
+    protected final File snapshotFile;
+    private final File journalFile;
+
+    public JournaledCacheFile(File directory, int dimensionId) {
+        snapshotFile = new File(directory, "DIM" + dimensionId);
+        journalFile = new File(directory, "DIM" + dimensionId + JOURNAL_SUFFIX);
+    }
+
+    public static Set<Integer> getDimensionIds(File directory) {
+        final Set<Integer> dimensionIds = new HashSet<>();
+        final String[] fileNames = directory.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                final Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
+                if (matcher.matches()) {
+                    dimensionIds.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        return dimensionIds;
+    }
+
+    public interface RecordsConsumer {
+
+        void accept(ByteBuffer records, boolean fromJournal);
+    }
+
+    /**
+     * Passes the snapshot and then every complete journal frame to the consumer. The files are memory-mapped and the
+     * buffers are views into the mapping, so they are only valid during the call.
+     */
+    public synchronized void load(RecordsConsumer consumer) {
+        loadSnapshot(consumer);
+        loadJournal(consumer);
+    }
+
+    protected void loadSnapshot(RecordsConsumer consumer) {
+        final MappedByteBuffer snapshot = Utils.mapFileReadOnly(snapshotFile);
+        if (snapshot != null) {
+            if (snapshot.remaining() >= Integer.BYTES && snapshot.getInt(0) == COMPRESSED_MAGIC) {
+                loadCompressedBlocks(snapshot, consumer);
+            } else {
+                consumer.accept(snapshot, false);
+            }
+            Utils.unmap(snapshot);
+        }
+    }
+
+    // Only one block is inflated at a time, so memory use does not grow with the file size
+    private void loadCompressedBlocks(ByteBuffer snapshot, RecordsConsumer consumer) {
+        snapshot.getInt();
+        while (snapshot.remaining() >= BLOCK_HEADER_BYTES) {
+            final int deflatedLength = snapshot.getInt();
+            final int inflatedLength = snapshot.getInt();
+            if (deflatedLength < 0 || inflatedLength < 0 || deflatedLength > snapshot.remaining()) {
+                VP.warn("Discarding incomplete block at the end of " + snapshotFile);
+                return;
+            }
+            final ByteBuffer block = snapshot.slice();
+            block.limit(deflatedLength);
+            snapshot.position(snapshot.position() + deflatedLength);
+            try {
+                consumer.accept(Utils.inflate(block, inflatedLength), false);
+            } catch (DataFormatException e) {
+                VP.warn("Discarding corrupt block in " + snapshotFile);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void loadJournal(RecordsConsumer consumer) {
+        final MappedByteBuffer journal = Utils.mapFileReadOnly(journalFile);
+        if (journal == null) {
+            return;
+        }
+        while (journal.remaining() >= FRAME_HEADER_BYTES) {
+            final int frameLength = journal.getInt();
+            if (frameLength < 0 || frameLength > journal.remaining()) {
+                journal.position(journal.position() - FRAME_HEADER_BYTES);
+                break;
+            }
+            final ByteBuffer frame = journal.slice();
+            frame.limit(frameLength);
+            consumer.accept(frame, true);
+            journal.position(journal.position() + frameLength);
+        }
+        final boolean isTorn = journal.hasRemaining();
+        final int validLength = journal.position();
+        Utils.unmap(journal);
+        if (isTorn) {
+            // Cut off the torn frame, otherwise the next append would be read as part of it
+            VP.warn("Discarding incomplete journal frame at the end of " + journalFile);
+            truncateJournal(validLength);
+        }
+    }
+
+    public synchronized void append(ByteBuffer records) {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + records.remaining());
+        frame.putInt(records.remaining());
+        frame.put(records);
+        frame.flip();
+        Utils.appendToFile(journalFile, frame);
+    }
+
+    // Waits until the appended frames are on the disk and not only handed to the operating system
+    public synchronized void force() {
+        if (journalFile.exists() == false) {
+            return;
+        }
+        try (final FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long getJournalLength() {
+        return journalFile.length();
+    }
+
+    /**
+     * Atomically replaces the snapshot and removes all journal frames it covers. Frames appended after the snapshot was
+     * taken are kept. If the process dies in between, replaying the old journal on top of the new snapshot still
+     * results in the same state.
+     *
+     * @param blocks               All records of this dimension. Each block must be readable on its own, as blocks
+     *                             are compressed individually if enabled
+     * @param coveredJournalLength Journal length at the time the snapshot was taken
+     */
+    public synchronized void compact(List<ByteBuffer> blocks, long coveredJournalLength) throws IOException {
+        Utils.writeFileAtomically(snapshotFile, Config.compressCacheFiles ? compressBlocks(blocks) : joinBlocks(blocks));
+        removeCoveredJournalFrames(coveredJournalLength);
+    }
+
+    private static ByteBuffer compressBlocks(List<ByteBuffer> blocks) {
+        final byte[][] deflatedBlocks = new byte[blocks.size()][];
+        int length = Integer.BYTES;
+        for (int block = 0; block < deflatedBlocks.length; block++) {
+            deflatedBlocks[block] = Utils.deflate(blocks.get(block));
+            length += BLOCK_HEADER_BYTES + deflatedBlocks[block].length;
+        }
+        final ByteBuffer compressed = ByteBuffer.allocate(length);
+        compressed.putInt(COMPRESSED_MAGIC);
+        for (int block = 0; block < deflatedBlocks.length; block++) {
+            compressed.putInt(deflatedBlocks[block].length);
+            compressed.putInt(blocks.get(block).remaining());
+            compressed.put(deflatedBlocks[block]);
+        }
+        compressed.flip();
+        return compressed;
+    }
+
+    private static ByteBuffer joinBlocks(List<ByteBuffer> blocks) {
+        int length = 0;
+        for (ByteBuffer block : blocks) {
+            length += block.remaining();
+        }
+        final ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer block : blocks) {
+            joined.put(block.duplicate());
+        }
+        joined.flip();
+        return joined;
+    }
+
+    protected void removeCoveredJournalFrames(long coveredJournalLength) throws IOException {
+        final long journalLength = journalFile.length();
+        if (journalLength <= coveredJournalLength) {
+            journalFile.delete();
+        } else {
+            // Only the uncovered tail is read
+            final ByteBuffer uncoveredFrames = ByteBuffer.allocate((int) (journalLength - coveredJournalLength));
+            try (final FileChannel journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                while (uncoveredFrames.hasRemaining()) {
+                    if (journalChannel.read(
+                            uncoveredFrames,
+                            coveredJournalLength + uncoveredFrames.position()) < 0) {
+                        break;
+                    }
+                }
+            }
+            uncoveredFrames.flip();
+            Utils.writeFileAtomically(journalFile, uncoveredFrames);
+        }
+    }
+
+    public synchronized void delete() {
+        snapshotFile.delete();
+        journalFile.delete();
+    }
+
+    private void truncateJournal(long length) {
+        try (final RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.sinthoras.visualprospecting.database;
+
+import java.util.Arrays;
+
+// Open addressing hash map from long to short without any boxing. Used to store millions of packed chunk keys with
+// their packed ore vein information at 10 bytes per slot.
+public class LongShortHashMap {
+
+    public interface EntryConsumer {
+
+        void accept(long key, short value);
+    }
+
+    public interface EntryPredicate {
+
+        boolean test(long key, short value);
+    }
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // Key 0 marks free slots, so an actual 0 key is stored outside the tables
+    private long[] keys;
+    private short[] values;
+    private boolean containsZeroKey = false;
+    private short zeroKeyValue;
+    private int size = 0;
+    private int mask;
+    private int maxFill;
+    private final short noEntryValue;
+
+    public LongShortHashMap(short noEntryValue) {
+        this(DEFAULT_CAPACITY, noEntryValue);
+    }
+
+    public LongShortHashMap(int expectedSize, short noEntryValue) {
+        this.noEntryValue = noEntryValue;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public short getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return containsZeroKey;
+        }
+        return keys[findSlot(key)] != 0;
+    }
+
+    public short get(long key) {
+        if (key == 0) {
+            return containsZeroKey ? zeroKeyValue : noEntryValue;
+        }
+        final int slot = findSlot(key);
+        return keys[slot] != 0 ? values[slot] : noEntryValue;
+    }
+
+    // Returns the previous value or noEntryValue if the key was not present
+    public short put(long key, short value) {
+        if (key == 0) {
+            final short previous = containsZeroKey ? zeroKeyValue : noEntryValue;
+            if (containsZeroKey == false) {
+                containsZeroKey = true;
+                size++;
+            }
+            zeroKeyValue = value;
+            return previous;
+        }
+        final int slot = findSlot(key);
+        if (keys[slot] != 0) {
+            final short previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > maxFill) {
+            rehash(keys.length << 1);
+        }
+        return noEntryValue;
+    }
+
+    // Returns the removed value or noEntryValue if the key was not present
+    public short remove(long key) {
+        if (key == 0) {
+            if (containsZeroKey == false) {
+                return noEntryValue;
+            }
+            containsZeroKey = false;
+            size--;
+            return zeroKeyValue;
+        }
+        final int slot = findSlot(key);
+        if (keys[slot] == 0) {
+            return noEntryValue;
+        }
+        final short previous = values[slot];
+        size--;
+        shiftKeys(slot);
+        return previous;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(keys, 0);
+        containsZeroKey = false;
+        size = 0;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        if (containsZeroKey) {
+            consumer.accept(0, zeroKeyValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    public int removeIf(EntryPredicate predicate) {
+        final int initialSize = size;
+        if (containsZeroKey && predicate.test(0, zeroKeyValue)) {
+            containsZeroKey = false;
+            size--;
+        }
+        int slot = 0;
+        while (slot < keys.length) {
+            if (keys[slot] != 0 && predicate.test(keys[slot], values[slot])) {
+                size--;
+                // Shifting may move a not yet visited entry into this slot, so it must be checked again
+                shiftKeys(slot);
+            } else {
+                slot++;
+            }
+        }
+        return initialSize - size;
+    }
+
+    public LongShortHashMap copy() {
+        final LongShortHashMap copy = new LongShortHashMap(DEFAULT_CAPACITY, noEntryValue);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.containsZeroKey = containsZeroKey;
+        copy.zeroKeyValue = zeroKeyValue;
+        copy.size = size;
+        copy.mask = mask;
+        copy.maxFill = maxFill;
+        return copy;
+    }
+
+    private int findSlot(long key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Backward shift deletion keeps probe sequences intact without tombstones
+    private void shiftKeys(int slot) {
+        while (true) {
+            final int last = slot;
+            slot = (slot + 1) & mask;
+            long key;
+            while (true) {
+                key = keys[slot];
+                if (key == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                final int home = mix(key) & mask;
+                if (last <= slot ? (last >= home || home > slot) : (last >= home && home > slot)) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[last] = key;
+            values[last] = values[slot];
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] oldKeys = keys;
+        final short[] oldValues = values;
+        allocate(newCapacity);
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldKeys[oldSlot] != 0) {
+                final int slot = findSlot(oldKeys[oldSlot]);
+                keys[slot] = oldKeys[oldSlot];
+                values[slot] = oldValues[oldSlot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new short[capacity];
+        mask = capacity - 1;
+        maxFill = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        final int minimumCapacity = (int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR);
+        return Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(minimumCapacity - 1) << 1);
+    }
+
+    private static int mix(long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32) ^ (hash >>> 16));
+    }
+}
@@ -0,0 +1,91 @@
+package com.sinthoras.visualprospecting.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sinthoras.visualprospecting.Utils;
+
+// Bounded ring buffer of generated ore veins. Any number of world generation threads offer veins without locking,
+// while draining is serialized. Each slot carries a sequence number that tells whether it is free or filled in the
+// current lap, so producers only contend on claiming the next position.
+public class OreVeinGenerationQueue {
+
+    public interface OreVeinConsumer {
+
+        void accept(int dimensionId, int chunkX, int chunkZ, short veinTypeId);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    // Chunk key and dimension id plus vein type id of every slot. Published by the sequence of the slot
+    private final long[] chunkKeys;
+    private final long[] dimensionsAndVeinTypes;
+    private final AtomicLong producerPosition = new AtomicLong(0);
+    // Only used while draining, which holds the lock of the queue
+    private long consumerPosition = 0;
+
+    public OreVeinGenerationQueue(int minCapacity) {
+        capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            sequences.set(slot, slot);
+        }
+        chunkKeys = new long[capacity];
+        dimensionsAndVeinTypes = new long[capacity];
+    }
+
+    // Returns false if the queue is full
+    public boolean offer(int dimensionId, int chunkX, int chunkZ, short veinTypeId) {
+        long position = producerPosition.get();
+        while (true) {
+            final int slot = (int) position & mask;
+            final long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (producerPosition.compareAndSet(position, position + 1)) {
+                    chunkKeys[slot] = Utils.chunkCoordsToKey(chunkX, chunkZ);
+                    dimensionsAndVeinTypes[slot] = ((long) dimensionId << 16) | (veinTypeId & 0xFFFFL);
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+                position = producerPosition.get();
+            } else if (sequence < position) {
+                // The slot still holds a vein from the previous lap
+                return false;
+            } else {
+                position = producerPosition.get();
+            }
+        }
+    }
+
+    // Passes all veins that were offered before to the consumer, in the order they were offered
+    public synchronized int drain(OreVeinConsumer consumer) {
+        long position = consumerPosition;
+        int drainedVeins = 0;
+        while (true) {
+            final int slot = (int) position & mask;
+            // Slots that are claimed but not filled yet are left for the next drain
+            if (sequences.get(slot) != position + 1) {
+                break;
+            }
+            final long chunkKey = chunkKeys[slot];
+            final long dimensionAndVeinType = dimensionsAndVeinTypes[slot];
+            sequences.set(slot, position + capacity);
+            position++;
+            consumerPosition = position;
+            drainedVeins++;
+            consumer.accept(
+                    (int) (dimensionAndVeinType >> 16),
+                    Utils.keyToChunkX(chunkKey),
+                    Utils.keyToChunkZ(chunkKey),
+                    (short) dimensionAndVeinType);
+        }
+        return drainedVeins;
+    }
+
+    // Drops all offered veins
+    public synchronized void clear() {
+        drain((dimensionId, chunkX, chunkZ, veinTypeId) -> {});
+    }
+}
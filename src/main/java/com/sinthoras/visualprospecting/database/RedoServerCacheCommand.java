@@ -1,8 +1,6 @@
 package com.sinthoras.visualprospecting.database;
 
-import java.io.IOException;
 import java.util.Objects;
-import java.util.zip.DataFormatException;
 
 import net.minecraft.command.CommandBase;
 import net.minecraft.command.ICommandSender;
@@ -13,7 +11,11 @@ import net.minecraft.util.IChatComponent;
 import net.minecraft.util.StatCollector;
 
 import com.sinthoras.visualprospecting.VP;
-import com.sinthoras.visualprospecting.database.cachebuilder.WorldAnalysis;
+import com.sinthoras.visualprospecting.database.cachebuilder.AnalysisProgressTracker;
+import com.sinthoras.visualprospecting.database.cachebuilder.DimensionAnalysisStatistics;
+import com.sinthoras.visualprospecting.database.cachebuilder.ServerCacheRebuild;
+import com.sinthoras.visualprospecting.task.CacheRebuildNotificationTask;
+import com.sinthoras.visualprospecting.task.TaskManager;
 
 import cpw.mods.fml.server.FMLServerHandler;
 
@@ -31,6 +33,24 @@ public class RedoServerCacheCommand extends CommandBase {
 
     @Override
     public void processCommand(ICommandSender sender, String[] parameters) {
+        final String subcommand = parameters.length > 0 ? parameters[0].toLowerCase() : "";
+        switch (subcommand) {
+            case "status":
+                sendStatus(sender);
+                return;
+            case "progress":
+                sendProgress(sender);
+                return;
+            case "cancel":
+                cancel(sender);
+                return;
+            default:
+                start(sender, subcommand.equals("full"));
+        }
+    }
+
+    // The rebuild runs in the background, so the server keeps ticking and answering requests from the current cache
+    private void start(ICommandSender sender, boolean full) {
         MinecraftServer server;
         if (sender instanceof EntityPlayerMP) {
             EntityPlayerMP player = (EntityPlayerMP) sender;
@@ -42,23 +62,63 @@ public class RedoServerCacheCommand extends CommandBase {
             VP.info("Server not found");
             return;
         }
-        final IChatComponent start = new ChatComponentTranslation("visualprospecting.redoservercache.start");
-        start.getChatStyle().setItalic(true);
-        sender.addChatMessage(start);
-        try {
-            WorldAnalysis world = new WorldAnalysis(server.getEntityWorld().getSaveHandler().getWorldDirectory());
-            world.cacheVeins();
-        } catch (IOException | DataFormatException e) {
-            VP.info("Could not load world save files to build vein cache!");
-            e.printStackTrace();
-            final IChatComponent failure = new ChatComponentTranslation("visualprospecting.redoservercache.failure");
-            failure.getChatStyle().setItalic(true);
-            sender.addChatMessage(failure);
+        // Only changed region files are analyzed again, unless a full recache is requested
+        final ServerCacheRebuild rebuild = ServerCacheRebuild
+                .start(server.getEntityWorld().getSaveHandler().getWorldDirectory(), full);
+        if (rebuild == null) {
+            sendMessage(sender, "visualprospecting.redoservercache.running");
+            return;
+        }
+        sendMessage(sender, "visualprospecting.redoservercache.start");
+        TaskManager.instance.addTask(new CacheRebuildNotificationTask(sender, rebuild));
+    }
+
+    private void sendStatus(ICommandSender sender) {
+        final ServerCacheRebuild rebuild = ServerCacheRebuild.getLatest();
+        if (rebuild == null) {
+            sendMessage(sender, "visualprospecting.redoservercache.status.none");
+            return;
         }
-        final IChatComponent confirmation = new ChatComponentTranslation(
-                "visualprospecting.redoservercache.confirmation");
-        confirmation.getChatStyle().setItalic(true);
-        sender.addChatMessage(confirmation);
+        final String state = rebuild.getState().name().toLowerCase();
+        sendMessage(sender, "visualprospecting.redoservercache.status." + state, rebuild.getElapsedSeconds());
+    }
+
+    private void sendProgress(ICommandSender sender) {
+        final ServerCacheRebuild rebuild = ServerCacheRebuild.getLatest();
+        if (rebuild == null || rebuild.getState() != ServerCacheRebuild.State.Running) {
+            sendMessage(sender, "visualprospecting.redoservercache.notrunning");
+            return;
+        }
+        sendMessage(
+                sender,
+                "visualprospecting.redoservercache.progress",
+                AnalysisProgressTracker.getCurrentDimension(),
+                AnalysisProgressTracker.getNumberOfDimensions(),
+                AnalysisProgressTracker.getRegionFilesPercentage());
+        final DimensionAnalysisStatistics statistics = AnalysisProgressTracker.getCurrentDimensionStatistics();
+        if (statistics != null) {
+            sendMessage(
+                    sender,
+                    "visualprospecting.redoservercache.progress.statistics",
+                    statistics.getProgressSummary(),
+                    statistics.getCountSummary(),
+                    statistics.getTimingSummary());
+        }
+    }
+
+    private void cancel(ICommandSender sender) {
+        final ServerCacheRebuild rebuild = ServerCacheRebuild.getLatest();
+        if (rebuild == null || rebuild.cancel() == false) {
+            sendMessage(sender, "visualprospecting.redoservercache.notrunning");
+            return;
+        }
+        sendMessage(sender, "visualprospecting.redoservercache.cancel");
+    }
+
+    private static void sendMessage(ICommandSender sender, String translationKey, Object... parameters) {
+        final IChatComponent message = new ChatComponentTranslation(translationKey, parameters);
+        message.getChatStyle().setItalic(true);
+        sender.addChatMessage(message);
     }
 
     @Override
@@ -1,6 +1,8 @@
 package com.sinthoras.visualprospecting.database;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +13,7 @@ import net.minecraftforge.fluids.FluidStack;
 import com.sinthoras.visualprospecting.Tags;
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.VP;
+import com.sinthoras.visualprospecting.database.veintypes.IVeinTypeIdProvider;
 import com.sinthoras.visualprospecting.database.veintypes.VeinType;
 import com.sinthoras.visualprospecting.database.veintypes.VeinTypeCaching;
 import com.sinthoras.visualprospecting.integration.gregtech.UndergroundFluidsWrapper;
@@ -19,13 +22,88 @@ public class ServerCache extends WorldCache {
 
     public static final ServerCache instance = new ServerCache();
 
+    // Room for the veins of a few seconds of pregeneration. Veins beyond that are put into the cache right away
+    private static final int GENERATED_ORE_VEIN_QUEUE_CAPACITY = 16384;
+
+    // Veins from world generation wait here until the server thread drains them once per tick
+    private final OreVeinGenerationQueue generatedOreVeins = new OreVeinGenerationQueue(
+            GENERATED_ORE_VEIN_QUEUE_CAPACITY);
+
+    // A cache that is rebuilt in the background must not miss veins that are generated meanwhile
+    private volatile ServerCache rebuildGeneration;
+
     protected File getStorageDirectory() {
         return Utils.getSubDirectory(Tags.SERVER_DIR);
     }
 
-    public synchronized void notifyOreVeinGeneration(int dimensionId, int chunkX, int chunkZ, final VeinType veinType) {
+    // Region files that went into the cache, to only analyze changed ones next time
+    public File getRegionManifestFile() {
+        return new File(oreVeinCacheDirectory, Tags.REGION_MANIFEST_FILE);
+    }
+
+    /**
+     * Marks that an analysis writes into the stored cache. If the marker is still there on the next start, the analysis
+     * was interrupted and the region manifest is its last checkpoint.
+     */
+    public void setAnalysisInProgress(boolean isInProgress) {
+        final File marker = new File(oreVeinCacheDirectory, Tags.ANALYSIS_IN_PROGRESS_FILE);
+        if (isInProgress == false) {
+            marker.delete();
+            return;
+        }
+        try {
+            Utils.writeFileAtomically(marker, ByteBuffer.allocate(0));
+        } catch (IOException e) {
+            VP.warn("Could not mark the vein cache analysis as in progress");
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isAnalysisInProgress() {
+        return new File(oreVeinCacheDirectory, Tags.ANALYSIS_IN_PROGRESS_FILE).exists();
+    }
+
+    // Queued veins are put into the cache first, so the save includes every vein generated so far
+    @Override
+    public void saveVeinCache() {
+        drainGeneratedOreVeins();
+        super.saveVeinCache();
+    }
+
+    @Override
+    public void reset() {
+        generatedOreVeins.clear();
+        super.reset();
+    }
+
+    @Override
+    public void resetAndDiscardStoredCache() {
+        if (oreVeinCacheDirectory != null) {
+            getRegionManifestFile().delete();
+            setAnalysisInProgress(false);
+        }
+        super.resetAndDiscardStoredCache();
+    }
+
+    /**
+     * Generated veins are also passed to the given generation until it is unset again. Without world files, the
+     * generation only lives in memory.
+     *
+     * @param generation The cache that is rebuilt or null once it is swapped in or dropped
+     */
+    public void setRebuildGeneration(ServerCache generation) {
+        rebuildGeneration = generation;
+    }
+
+    // Puts do not lock, so world generation threads do not wait for each other
+    public void notifyOreVeinGeneration(int dimensionId, int chunkX, int chunkZ, final VeinType veinType) {
         if (veinType != VeinType.NO_VEIN) {
-            super.putOreVein(new OreVeinPosition(dimensionId, chunkX, chunkZ, veinType));
+            final OreVeinPosition oreVeinPosition = new OreVeinPosition(dimensionId, chunkX, chunkZ, veinType);
+            super.putOreVein(oreVeinPosition);
+            final ServerCache generation = rebuildGeneration;
+            if (generation != null) {
+                generation.putOreVein(oreVeinPosition);
+            }
         }
     }
 
@@ -33,6 +111,29 @@ public class ServerCache extends WorldCache {
         notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, VeinTypeCaching.getVeinType(veinName));
     }
 
+    /**
+     * Like {@link #notifyOreVeinGeneration(int, int, int, VeinType)}, but only queues the vein without locking, so
+     * world generation is not held up by the cache. The vein is put into the cache with the next server tick or save.
+     *
+     * @param veinTypeId Resolved by the generator, see {@link IVeinTypeIdProvider}
+     */
+    public void queueOreVeinGeneration(int dimensionId, int chunkX, int chunkZ, short veinTypeId) {
+        // A full queue is not waited on, the vein goes into the cache directly instead
+        if (generatedOreVeins.offer(dimensionId, chunkX, chunkZ, veinTypeId) == false) {
+            notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, VeinTypeCaching.getVeinType(veinTypeId));
+        }
+    }
+
+    // Puts all queued veins into the cache in one go. Called once per server tick and before every save
+    public void drainGeneratedOreVeins() {
+        generatedOreVeins.drain(
+                (dimensionId, chunkX, chunkZ, veinTypeId) -> notifyOreVeinGeneration(
+                        dimensionId,
+                        chunkX,
+                        chunkZ,
+                        VeinTypeCaching.getVeinType(veinTypeId)));
+    }
+
     public List<OreVeinPosition> prospectOreChunks(int dimensionId, int minChunkX, int minChunkZ, int maxChunkX,
             int maxChunkZ) {
         minChunkX = Utils.mapToCenterOreChunkCoord(minChunkX);
@@ -43,9 +144,8 @@ public class ServerCache extends WorldCache {
         List<OreVeinPosition> oreVeinPositions = new ArrayList<>();
         for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX = Utils.mapToCenterOreChunkCoord(chunkX + 3)) {
             for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ = Utils.mapToCenterOreChunkCoord(chunkZ + 3)) {
-                final OreVeinPosition oreVeinPosition = getOreVein(dimensionId, chunkX, chunkZ);
-                if (oreVeinPosition.veinType != VeinType.NO_VEIN) {
-                    oreVeinPositions.add(oreVeinPosition);
+                if (getOreVeinType(dimensionId, chunkX, chunkZ) != VeinType.NO_VEIN) {
+                    oreVeinPositions.add(getOreVein(dimensionId, chunkX, chunkZ));
                 }
             }
         }
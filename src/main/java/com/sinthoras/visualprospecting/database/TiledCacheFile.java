@@ -0,0 +1,237 @@
+package com.sinthoras.visualprospecting.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+
+import com.sinthoras.visualprospecting.Config;
+import com.sinthoras.visualprospecting.Utils;
+import com.sinthoras.visualprospecting.VP;
+
+/**
+ * A {@link JournaledCacheFile} whose snapshot is split into independently readable tiles. The snapshot starts with a
+ * header and an index of all tiles:
+ *
+ * <pre>
+ * int magic, int version, int tileCount
+ * tileCount * (int tileX, int tileZ, int offset, int length, int inflatedLength)
+ * tile data
+ * </pre>
+ *
+ * Tiles are deflated individually if enabled, an inflatedLength of 0 marks an uncompressed tile. Version 1 had no
+ * inflatedLength. Loading only reads the index, tiles are read on demand with {@link #readTile(long)}. The content of a
+ * tile is up to the caller. Snapshots in the old flat record format are still passed to the records consumer as a
+ * whole.
+ */
+public class TiledCacheFile extends JournaledCacheFile {
+
+    // Never a valid chunk coordinate, so it cannot be confused with the first record of a flat snapshot
+    private static final int MAGIC = 0x56505443;
+    private static final int VERSION = 2;
+    private static final int UNCOMPRESSED_VERSION = 1;
+    private static final int HEADER_BYTES = Integer.BYTES * 3;
+    private static final int UNCOMPRESSED_INDEX_ENTRY_BYTES = Integer.BYTES * 4;
+    private static final int INDEX_ENTRY_BYTES = Integer.BYTES * 5;
+    private static final int UNCOMPRESSED = 0;
+
+    private static class TileLocation {
+
+        private final int offset;
+        private final int length;
+        private final int inflatedLength;
+
+        private TileLocation(int offset, int length, int inflatedLength) {
+            this.offset = offset;
+            this.length = length;
+            this.inflatedLength = inflatedLength;
+        }
+
+        private int getTileLength() {
+            return inflatedLength == UNCOMPRESSED ? length : inflatedLength;
+        }
+    }
+
+    // The bytes of a tile as they are stored in the snapshot
+    private static class StoredTile {
+
+        private final ByteBuffer bytes;
+        private final int inflatedLength;
+
+        private StoredTile(ByteBuffer bytes, int inflatedLength) {
+            this.bytes = bytes;
+            this.inflatedLength = inflatedLength;
+        }
+    }
+
+    // Always matches the snapshot on disk. Both are only replaced together while holding the lock
+    private Map<Long, TileLocation> tileIndex = new HashMap<>();
+
+    public TiledCacheFile(File directory, int dimensionId) {
+        super(directory, dimensionId);
+    }
+
+    @Override
+    protected void loadSnapshot(RecordsConsumer consumer) {
+        tileIndex = new HashMap<>();
+        final MappedByteBuffer snapshot = Utils.mapFileReadOnly(snapshotFile);
+        if (snapshot == null) {
+            return;
+        }
+        if (snapshot.remaining() >= HEADER_BYTES && snapshot.getInt(0) == MAGIC) {
+            readTileIndex(snapshot);
+        } else {
+            consumer.accept(snapshot, false);
+        }
+        Utils.unmap(snapshot);
+    }
+
+    private void readTileIndex(ByteBuffer snapshot) {
+        snapshot.getInt();
+        final int version = snapshot.getInt();
+        if (version != VERSION && version != UNCOMPRESSED_VERSION) {
+            VP.warn("Ignoring " + snapshotFile + " with unknown version " + version);
+            return;
+        }
+        final int indexEntryBytes = version == VERSION ? INDEX_ENTRY_BYTES : UNCOMPRESSED_INDEX_ENTRY_BYTES;
+        final int tileCount = snapshot.getInt();
+        if (tileCount < 0 || (long) tileCount * indexEntryBytes > snapshot.remaining()) {
+            VP.warn("Ignoring " + snapshotFile + " with a corrupt tile index");
+            return;
+        }
+        for (int tile = 0; tile < tileCount; tile++) {
+            final int tileX = snapshot.getInt();
+            final int tileZ = snapshot.getInt();
+            final int offset = snapshot.getInt();
+            final int length = snapshot.getInt();
+            final int inflatedLength = version == VERSION ? snapshot.getInt() : UNCOMPRESSED;
+            if (offset < 0 || length < 0 || inflatedLength < 0 || (long) offset + length > snapshot.limit()) {
+                VP.warn("Skipping tile (" + tileX + "," + tileZ + ") beyond the end of " + snapshotFile);
+                continue;
+            }
+            tileIndex.put(Utils.chunkCoordsToKey(tileX, tileZ), new TileLocation(offset, length, inflatedLength));
+        }
+    }
+
+    // Tile keys with the uncompressed length of each tile
+    public synchronized Map<Long, Integer> getTileLengths() {
+        final Map<Long, Integer> tileLengths = new HashMap<>();
+        for (Map.Entry<Long, TileLocation> entry : tileIndex.entrySet()) {
+            tileLengths.put(entry.getKey(), entry.getValue().getTileLength());
+        }
+        return tileLengths;
+    }
+
+    /**
+     * Reads and inflates a single tile from the snapshot. The file is only opened for the duration of the read, so it
+     * can still be replaced by a compaction.
+     *
+     * @return The tile or null if the snapshot does not contain it
+     */
+    public synchronized ByteBuffer readTile(long tileKey) {
+        final TileLocation location = tileIndex.get(tileKey);
+        if (location == null) {
+            return null;
+        }
+        try (final FileChannel snapshotChannel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer storedTile = readFully(snapshotChannel, location);
+            return location.inflatedLength == UNCOMPRESSED ? storedTile
+                    : Utils.inflate(storedTile, location.inflatedLength);
+        } catch (IOException | DataFormatException e) {
+            VP.warn("Could not read tile from " + snapshotFile);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, TileLocation location) throws IOException {
+        final ByteBuffer tile = ByteBuffer.allocate(location.length);
+        while (tile.hasRemaining()) {
+            if (channel.read(tile, location.offset + tile.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        tile.flip();
+        return tile;
+    }
+
+    /**
+     * Writes a new tiled snapshot. Tiles that are not passed in are copied byte by byte from the current snapshot, so
+     * only modified tiles need to be encoded and compressed.
+     *
+     * @param modifiedTiles        Encoded tiles by tile key. An empty buffer removes the tile
+     * @param coveredJournalLength Journal length at the time the tiles were encoded
+     */
+    public synchronized void compactTiles(Map<Long, ByteBuffer> modifiedTiles, long coveredJournalLength)
+            throws IOException {
+        // Sorted, so neighbouring tiles end up close to each other
+        final Map<Long, StoredTile> tiles = new TreeMap<>();
+        if (tileIndex.isEmpty() == false) {
+            try (final FileChannel snapshotChannel = FileChannel
+                    .open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+                for (Map.Entry<Long, TileLocation> entry : tileIndex.entrySet()) {
+                    if (modifiedTiles.containsKey(entry.getKey()) == false) {
+                        final TileLocation location = entry.getValue();
+                        tiles.put(
+                                entry.getKey(),
+                                new StoredTile(readFully(snapshotChannel, location), location.inflatedLength));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Long, ByteBuffer> entry : modifiedTiles.entrySet()) {
+            final ByteBuffer tile = entry.getValue();
+            if (tile.hasRemaining() == false) {
+                continue;
+            }
+            if (Config.compressCacheFiles) {
+                tiles.put(entry.getKey(), new StoredTile(ByteBuffer.wrap(Utils.deflate(tile)), tile.remaining()));
+            } else {
+                tiles.put(entry.getKey(), new StoredTile(tile, UNCOMPRESSED));
+            }
+        }
+        int dataBytes = 0;
+        for (StoredTile tile : tiles.values()) {
+            dataBytes += tile.bytes.remaining();
+        }
+
+        final int indexBytes = HEADER_BYTES + tiles.size() * INDEX_ENTRY_BYTES;
+        final ByteBuffer snapshot = ByteBuffer.allocate(indexBytes + dataBytes);
+        final Map<Long, TileLocation> newTileIndex = new HashMap<>();
+        snapshot.putInt(MAGIC);
+        snapshot.putInt(VERSION);
+        snapshot.putInt(tiles.size());
+        int offset = indexBytes;
+        for (Map.Entry<Long, StoredTile> entry : tiles.entrySet()) {
+            final int length = entry.getValue().bytes.remaining();
+            final int inflatedLength = entry.getValue().inflatedLength;
+            snapshot.putInt(Utils.keyToChunkX(entry.getKey()));
+            snapshot.putInt(Utils.keyToChunkZ(entry.getKey()));
+            snapshot.putInt(offset);
+            snapshot.putInt(length);
+            snapshot.putInt(inflatedLength);
+            newTileIndex.put(entry.getKey(), new TileLocation(offset, length, inflatedLength));
+            offset += length;
+        }
+        for (StoredTile tile : tiles.values()) {
+            snapshot.put(tile.bytes.duplicate());
+        }
+        snapshot.flip();
+
+        Utils.writeFileAtomically(snapshotFile, snapshot);
+        tileIndex = newTileIndex;
+        removeCoveredJournalFrames(coveredJournalLength);
+    }
+
+    @Override
+    public synchronized void delete() {
+        super.delete();
+        tileIndex = new HashMap<>();
+    }
+}
@@ -1,88 +1,359 @@
 package com.sinthoras.visualprospecting.database;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import net.minecraft.util.ChunkCoordinates;
 
+import com.sinthoras.visualprospecting.Config;
 import com.sinthoras.visualprospecting.Tags;
 import com.sinthoras.visualprospecting.Utils;
+import com.sinthoras.visualprospecting.VP;
 import com.sinthoras.visualprospecting.database.veintypes.VeinType;
 
 public abstract class WorldCache {
 
-    protected final Map<Integer, DimensionCache> dimensions = new HashMap<>();
-    private boolean needsSaving = false;
+    // Compactions of all worlds run one after another to keep their file accesses ordered
+    private static final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, Tags.MODNAME + " cache compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Saves are written off the server thread. The dimensions of one save are written one after another, so their
+    // journals are only ever appended to by this thread
+    private static final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, Tags.MODNAME + " cache writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long SHUTDOWN_SAVE_TIMEOUT_SECONDS = 30;
+    // Parses multiple dimensions at once, but leaves some cores for the game
+    private static final ExecutorService loadExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+            runnable -> {
+                final Thread thread = new Thread(runnable, Tags.MODNAME + " cache loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Dimensions are loaded on their first access and evicted again once they were idle for a while
+    private final Map<Integer, DimensionCache> dimensions = new ConcurrentHashMap<>();
+    private final Map<Integer, TiledCacheFile> oreVeinFiles = new ConcurrentHashMap<>();
+    private final Map<Integer, JournaledCacheFile> undergroundFluidFiles = new ConcurrentHashMap<>();
+    private final Set<Integer> pendingCompactions = ConcurrentHashMap.newKeySet();
+    // Concurrent requests for the same dimension share its load
+    private final Map<Integer, CompletableFuture<DimensionCache>> pendingLoads = new ConcurrentHashMap<>();
+    private volatile boolean needsSaving = false;
+    private final AtomicBoolean isSaveScheduled = new AtomicBoolean(false);
     protected File oreVeinCacheDirectory;
     protected File undergroundFluidCacheDirectory;
-    private boolean isLoaded = false;
+    private volatile boolean isLoaded = false;
 
     protected abstract File getStorageDirectory();
 
+    // Only looks up which dimensions are stored. Their records are loaded once they are accessed
     public boolean loadVeinCache(String worldId) {
         if (isLoaded) {
             return true;
         }
-        isLoaded = true;
+        // A save or compaction of the previous world might still write to its files
+        awaitPendingWrites();
         final File worldCacheDirectory = new File(getStorageDirectory(), worldId);
         oreVeinCacheDirectory = new File(worldCacheDirectory, Tags.OREVEIN_DIR);
         undergroundFluidCacheDirectory = new File(worldCacheDirectory, Tags.UNDERGROUNDFLUID_DIR);
         oreVeinCacheDirectory.mkdirs();
         undergroundFluidCacheDirectory.mkdirs();
-        final Map<Integer, ByteBuffer> oreVeinDimensionBuffers = Utils.getDIMFiles(oreVeinCacheDirectory);
-        final Map<Integer, ByteBuffer> undergroundFluidDimensionBuffers = Utils
-                .getDIMFiles(undergroundFluidCacheDirectory);
-        final Set<Integer> dimensionsIds = new HashSet<>();
-        dimensionsIds.addAll(oreVeinDimensionBuffers.keySet());
-        dimensionsIds.addAll(undergroundFluidDimensionBuffers.keySet());
-        dimensionsIds.addAll(dimensions.keySet());
-        if (dimensionsIds.isEmpty()) {
-            return false;
-        }
+        oreVeinFiles.clear();
+        undergroundFluidFiles.clear();
+        isLoaded = true;
 
-        for (int dimensionId : dimensionsIds) {
-            DimensionCache dimension = dimensions.get(dimensionId);
-            if (dimension == null) {
-                dimension = new DimensionCache(dimensionId);
-            }
-            dimension.loadCache(
-                    oreVeinDimensionBuffers.get(dimensionId),
-                    undergroundFluidDimensionBuffers.get(dimensionId));
-            dimensions.put(dimensionId, dimension);
+        // Dimensions that were accessed before the world was known still need their stored records
+        final List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (DimensionCache dimension : dimensions.values()) {
+            loads.add(CompletableFuture.runAsync(() -> loadDimensionFiles(dimension), loadExecutor));
         }
-        return true;
+        CompletableFuture.allOf(loads.toArray(new CompletableFuture[0])).join();
+        return getStoredDimensionIds().isEmpty() == false || dimensions.isEmpty() == false;
     }
 
+    // Schedules a save in the background. Saves requested before the scheduled one started are merged into it
     public void saveVeinCache() {
+        if (isSaveScheduled.compareAndSet(false, true)) {
+            saveExecutor.execute(() -> {
+                isSaveScheduled.set(false);
+                try {
+                    writeVeinCache();
+                } catch (RuntimeException e) {
+                    VP.warn("Could not save vein cache");
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Saves right away and blocks until everything, including compactions, is written
+    public void flushVeinCache() {
+        saveVeinCache();
+        awaitPendingWrites();
+    }
+
+    // Also forces the journals to disk. Whatever relies on the stored veins, like an analysis checkpoint, is only
+    // written afterwards, so a crash cannot leave it behind without them
+    public void flushVeinCacheToDisk() {
+        flushVeinCache();
+        oreVeinFiles.values().forEach(JournaledCacheFile::force);
+        undergroundFluidFiles.values().forEach(JournaledCacheFile::force);
+    }
+
+    private void writeVeinCache() {
+        // Nothing can be written before the files of the world are known
+        if (isLoaded == false) {
+            return;
+        }
+        // Reset before the changes are taken out, so later changes request the next save
         if (needsSaving) {
-            for (DimensionCache dimension : dimensions.values()) {
-                final ByteBuffer oreVeinBuffer = dimension.saveOreChunks();
-                if (oreVeinBuffer != null) {
-                    Utils.appendToFile(
-                            new File(oreVeinCacheDirectory.toPath() + "/DIM" + dimension.dimensionId),
-                            oreVeinBuffer);
+            needsSaving = false;
+            dimensions.values().forEach(this::saveDimension);
+        }
+        evictIdleDimensions();
+    }
+
+    protected DimensionCache getDimension(int dimensionId) {
+        DimensionCache dimension = dimensions.get(dimensionId);
+        if (dimension == null) {
+            // Loads on the calling thread unless another thread is already loading this dimension
+            dimension = loadDimension(dimensionId, Runnable::run).join();
+        }
+        dimension.markAccessed();
+        return dimension;
+    }
+
+    // Pins the dimension while it is changed, so an eviction cannot save it and drop the change afterwards
+    private <T> T changeDimension(int dimensionId, Function<DimensionCache, T> change) {
+        while (true) {
+            final DimensionCache dimension = getDimension(dimensionId);
+            if (dimension.tryPin()) {
+                try {
+                    return change.apply(dimension);
+                } finally {
+                    dimension.unpin();
+                }
+            }
+            // The dimension is being evicted. Once it is saved, the next lookup loads it again
+            Thread.yield();
+        }
+    }
+
+    // Loads every stored dimension in parallel. Only meant for operations that need the complete cache
+    protected Collection<DimensionCache> getAllDimensions() {
+        if (isLoaded) {
+            final List<CompletableFuture<DimensionCache>> loads = new ArrayList<>();
+            for (int dimensionId : getStoredDimensionIds()) {
+                if (dimensions.containsKey(dimensionId) == false) {
+                    loads.add(loadDimension(dimensionId, loadExecutor));
                 }
-                final ByteBuffer undergroundFluidBuffer = dimension.saveUndergroundFluids();
-                if (undergroundFluidBuffer != null) {
-                    Utils.appendToFile(
-                            new File(undergroundFluidCacheDirectory.toPath() + "/DIM" + dimension.dimensionId),
-                            undergroundFluidBuffer);
+            }
+            CompletableFuture.allOf(loads.toArray(new CompletableFuture[0])).join();
+        }
+        return dimensions.values();
+    }
+
+    private Set<Integer> getStoredDimensionIds() {
+        final Set<Integer> dimensionsIds = new HashSet<>();
+        dimensionsIds.addAll(JournaledCacheFile.getDimensionIds(oreVeinCacheDirectory));
+        dimensionsIds.addAll(JournaledCacheFile.getDimensionIds(undergroundFluidCacheDirectory));
+        return dimensionsIds;
+    }
+
+    // Parses the dimension into its own DimensionCache on the executor and adds it to the dimensions once done
+    private CompletableFuture<DimensionCache> loadDimension(int dimensionId, Executor executor) {
+        final CompletableFuture<DimensionCache> load = new CompletableFuture<>();
+        final CompletableFuture<DimensionCache> pendingLoad = pendingLoads.putIfAbsent(dimensionId, load);
+        if (pendingLoad != null) {
+            return pendingLoad;
+        }
+        executor.execute(() -> {
+            try {
+                DimensionCache dimension = dimensions.get(dimensionId);
+                // It might have been loaded right before this load was registered
+                if (dimension == null) {
+                    dimension = new DimensionCache(dimensionId);
+                    if (isLoaded) {
+                        loadDimensionFiles(dimension);
+                    }
+                    dimensions.put(dimensionId, dimension);
                 }
+                load.complete(dimension);
+            } catch (RuntimeException e) {
+                load.completeExceptionally(e);
+            } finally {
+                pendingLoads.remove(dimensionId, load);
             }
-            needsSaving = false;
+        });
+        return load;
+    }
+
+    private void loadDimensionFiles(DimensionCache dimension) {
+        final long startTime = System.currentTimeMillis();
+        final int dimensionId = dimension.dimensionId;
+        if (pendingCompactions.contains(dimensionId)) {
+            // The dimension was evicted and its files are still being rewritten
+            awaitPendingCompactions();
+        }
+        dimension.loadOreChunks(getOreVeinFile(dimensionId));
+        getUndergroundFluidFile(dimensionId).load(dimension::loadUndergroundFluids);
+        if (dimension.needsCompaction()) {
+            // Loads run on other threads, but the snapshot must be taken between two journal appends
+            saveExecutor.execute(() -> scheduleCompaction(dimension));
+        }
+        VP.info(
+                "Loaded vein cache of dimension " + dimensionId
+                        + " in "
+                        + (System.currentTimeMillis() - startTime)
+                        + "ms");
+    }
+
+    // Only called by the writer thread, so journal frames are appended in the order their changes were taken out
+    private void saveDimension(DimensionCache dimension) {
+        final ByteBuffer oreVeinBuffer = dimension.saveOreChunks();
+        if (oreVeinBuffer != null) {
+            getOreVeinFile(dimension.dimensionId).append(oreVeinBuffer);
+        }
+        final ByteBuffer undergroundFluidBuffer = dimension.saveUndergroundFluids();
+        if (undergroundFluidBuffer != null) {
+            getUndergroundFluidFile(dimension.dimensionId).append(undergroundFluidBuffer);
+        }
+        if (dimension.needsCompaction()) {
+            scheduleCompaction(dimension);
         }
     }
 
+    private void evictIdleDimensions() {
+        // Without a world directory an evicted dimension could not be loaded again
+        if (isLoaded == false || Config.dimensionCacheIdleMinutes <= 0) {
+            return;
+        }
+        final long idleSince = System.currentTimeMillis() - Config.dimensionCacheIdleMinutes * 60_000L;
+        for (int dimensionId : dimensions.keySet()) {
+            dimensions.computeIfPresent(dimensionId, (id, dimension) -> {
+                // Changes that hold on to the dimension would be lost once it is saved for the last time
+                if (dimension.getLastAccessTime() >= idleSince || dimension.tryEvict() == false) {
+                    return dimension;
+                }
+                saveDimension(dimension);
+                return null;
+            });
+        }
+    }
+
+    private TiledCacheFile getOreVeinFile(int dimensionId) {
+        return oreVeinFiles.computeIfAbsent(dimensionId, id -> new TiledCacheFile(oreVeinCacheDirectory, id));
+    }
+
+    private JournaledCacheFile getUndergroundFluidFile(int dimensionId) {
+        return undergroundFluidFiles.computeIfAbsent(
+                dimensionId,
+                id -> new JournaledCacheFile(undergroundFluidCacheDirectory, id));
+    }
+
+    // Only called by the writer thread. The snapshot is taken right away, only the file operations are done in the
+    // background
+    private void scheduleCompaction(DimensionCache dimension) {
+        final int dimensionId = dimension.dimensionId;
+        if (pendingCompactions.add(dimensionId) == false) {
+            return;
+        }
+        final TiledCacheFile oreVeinFile = getOreVeinFile(dimensionId);
+        final JournaledCacheFile undergroundFluidFile = getUndergroundFluidFile(dimensionId);
+        final Map<Long, ByteBuffer> oreVeinTiles;
+        final List<ByteBuffer> undergroundFluidSnapshot;
+        final long oreVeinJournalLength;
+        final long undergroundFluidJournalLength;
+        // The writer thread does all appends, so nothing is appended to the journal in between. Ore veins that are put
+        // meanwhile are journaled afterwards and replayed on top of the snapshot
+        synchronized (dimension) {
+            oreVeinTiles = dimension.saveModifiedOreTiles();
+            undergroundFluidSnapshot = dimension.saveAllUndergroundFluids();
+            oreVeinJournalLength = oreVeinFile.getJournalLength();
+            undergroundFluidJournalLength = undergroundFluidFile.getJournalLength();
+            dimension.onSnapshotSaved();
+        }
+
+        compactionExecutor.execute(() -> {
+            boolean succeeded = false;
+            try {
+                oreVeinFile.compactTiles(oreVeinTiles, oreVeinJournalLength);
+                undergroundFluidFile.compact(undergroundFluidSnapshot, undergroundFluidJournalLength);
+                succeeded = true;
+            } catch (IOException e) {
+                VP.warn("Could not compact vein cache of dimension " + dimensionId);
+                e.printStackTrace();
+            } finally {
+                dimension.onCompactionFinished(succeeded);
+                pendingCompactions.remove(dimensionId);
+            }
+        });
+    }
+
+    private void awaitPendingCompactions() {
+        try {
+            compactionExecutor.submit(() -> {}).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Waits for scheduled saves and the compactions they trigger, but gives up on saves that take too long
+    protected void awaitPendingWrites() {
+        try {
+            saveExecutor.submit(() -> {}).get(SHUTDOWN_SAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            VP.warn("Vein cache was not saved within " + SHUTDOWN_SAVE_TIMEOUT_SECONDS + " seconds");
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        awaitPendingCompactions();
+    }
+
     public void reset() {
+        awaitPendingWrites();
         dimensions.clear();
         needsSaving = false;
         isLoaded = false;
     }
 
+    // Removes all stored files and the in-memory cache, so the next save writes everything from scratch. The world
+    // stays loaded, so a rebuilt cache is saved to the same files
+    public void resetAndDiscardStoredCache() {
+        awaitPendingWrites();
+        if (oreVeinCacheDirectory != null) {
+            // Dimensions that were never accessed have no file objects yet
+            for (int dimensionId : getStoredDimensionIds()) {
+                getOreVeinFile(dimensionId).delete();
+                getUndergroundFluidFile(dimensionId).delete();
+            }
+        }
+        dimensions.clear();
+        needsSaving = false;
+    }
+
     /**
      * Reset some chunks. Not all, and (usually) not none - but some. Input coords are in chunk coordinates, NOT block
      * coords.
@@ -95,12 +366,26 @@ public abstract class WorldCache {
      */
     public void resetSome(int dimID, int startX, int startZ, int endX, int endZ) {
 
-        DimensionCache dim = dimensions.get(dimID);
-        if (dim != null) {
-            dim.clearOreVeins(startX, startZ, endX, endZ);
-            needsSaving = true;
-            isLoaded = false;
-        }
+        changeDimension(dimID, dimension -> {
+            dimension.clearOreVeins(startX, startZ, endX, endZ);
+            return null;
+        });
+        needsSaving = true;
+    }
+
+    /**
+     * Takes over the ore veins of another cache, one dimension at a time. Lookups see either all old or all new veins
+     * of a region, never a mix.
+     *
+     * @param regionKeys Regions to take over or null to take over all ore veins of the dimension
+     */
+    public void replaceOreVeins(int dimensionId, Set<Long> regionKeys, WorldCache source) {
+        final DimensionCache sourceDimension = source.getDimension(dimensionId);
+        changeDimension(dimensionId, dimension -> {
+            dimension.replaceOreVeins(regionKeys, sourceDimension);
+            return null;
+        });
+        needsSaving = true;
     }
 
     public void resetSpawnChunks(ChunkCoordinates spawn, int dimID) {
@@ -118,49 +403,42 @@ public abstract class WorldCache {
     }
 
     private DimensionCache.UpdateResult updateSaveFlag(DimensionCache.UpdateResult updateResult) {
-        needsSaving |= updateResult != DimensionCache.UpdateResult.AlreadyKnown;
+        // Only written on changes, since concurrent puts of known veins would all write the shared flag otherwise
+        if (updateResult != DimensionCache.UpdateResult.AlreadyKnown) {
+            needsSaving = true;
+        }
         return updateResult;
     }
 
     protected DimensionCache.UpdateResult putOreVein(final OreVeinPosition oreVeinPosition) {
-        DimensionCache dimension = dimensions.get(oreVeinPosition.dimensionId);
-        if (dimension == null) {
-            dimension = new DimensionCache(oreVeinPosition.dimensionId);
-            dimensions.put(oreVeinPosition.dimensionId, dimension);
-        }
-        return updateSaveFlag(dimension.putOreVein(oreVeinPosition));
+        return updateSaveFlag(
+                changeDimension(oreVeinPosition.dimensionId, dimension -> dimension.putOreVein(oreVeinPosition)));
     }
 
     protected void toggleOreVein(int dimensionId, int chunkX, int chunkZ) {
-        DimensionCache dimension = dimensions.get(dimensionId);
-        if (dimension != null) {
+        changeDimension(dimensionId, dimension -> {
             dimension.toggleOreVein(chunkX, chunkZ);
-        }
+            return null;
+        });
         needsSaving = true;
     }
 
     public OreVeinPosition getOreVein(int dimensionId, int chunkX, int chunkZ) {
-        DimensionCache dimension = dimensions.get(dimensionId);
-        if (dimension == null) {
-            return new OreVeinPosition(dimensionId, chunkX, chunkZ, VeinType.NO_VEIN, true);
-        }
-        return dimension.getOreVein(chunkX, chunkZ);
+        return getDimension(dimensionId).getOreVein(chunkX, chunkZ);
+    }
+
+    public VeinType getOreVeinType(int dimensionId, int chunkX, int chunkZ) {
+        return getDimension(dimensionId).getOreVeinType(chunkX, chunkZ);
     }
 
     protected DimensionCache.UpdateResult putUndergroundFluids(final UndergroundFluidPosition undergroundFluid) {
-        DimensionCache dimension = dimensions.get(undergroundFluid.dimensionId);
-        if (dimension == null) {
-            dimension = new DimensionCache(undergroundFluid.dimensionId);
-            dimensions.put(undergroundFluid.dimensionId, dimension);
-        }
-        return updateSaveFlag(dimension.putUndergroundFluid(undergroundFluid));
+        return updateSaveFlag(
+                changeDimension(
+                        undergroundFluid.dimensionId,
+                        dimension -> dimension.putUndergroundFluid(undergroundFluid)));
     }
 
     public UndergroundFluidPosition getUndergroundFluid(int dimensionId, int chunkX, int chunkZ) {
-        DimensionCache dimension = dimensions.get(dimensionId);
-        if (dimension == null) {
-            return UndergroundFluidPosition.getNotProspected(dimensionId, chunkX, chunkZ);
-        }
-        return dimension.getUndergroundFluid(chunkX, chunkZ);
+        return getDimension(dimensionId).getUndergroundFluid(chunkX, chunkZ);
     }
 }
@@ -0,0 +1,120 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Holds back the chunks that need a second identification pass until the first pass classified all eight ore chunks
+ * around them. Each waiting chunk counts its neighbors in region files whose results are not all applied yet. Once such
+ * a region file completes, the chunks around it count down and the ones at zero are released right away. Only the
+ * chunks of region files in progress and along their borders are kept, no matter how large the dimension is.
+ * <p>
+ * Neighbors are counted per region file instead of per chunk: ungenerated chunks never produce a result, so a missing
+ * neighbor is only known to be missing once its whole region file is read. Neighbors in the same region file as the
+ * chunk always count as one, so inner chunks are released together with their own region file.
+ * <p>
+ * Not thread safe, only meant to be called by the aggregating thread of a scan.
+ */
+public class AmbiguousChunkTracker {
+
+    // A chunk in its compact serialized form, see DetailedChunkAnalysis.toBytes()
+    public static class AmbiguousChunk {
+
+        public final byte[] compactChunk;
+        public final int chunkX;
+        public final int chunkZ;
+        private int pendingNeighbors = 0;
+
+        public AmbiguousChunk(byte[] compactChunk, int chunkX, int chunkZ) {
+            this.compactChunk = compactChunk;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+    }
+
+    private final Set<Long> pendingRegionKeys;
+    private final Set<Long> unscannedRegionKeys;
+    private final Consumer<AmbiguousChunk> readyChunks;
+    // A chunk is listed once per neighbor in the region
+    private final Map<Long, List<AmbiguousChunk>> chunksByPendingRegion = new HashMap<>();
+    private final List<AmbiguousChunk> deferredChunks = new ArrayList<>();
+    private final Set<Long> deferredRegionKeys = new HashSet<>();
+    private int numberOfChunks = 0;
+    private int numberOfWaitingChunks = 0;
+    private int maxWaitingChunks = 0;
+
+    /**
+     * @param pendingRegionKeys   Regions that are scanned now. Region coordinates are packed like chunk coordinates
+     * @param unscannedRegionKeys Regions that are scanned later. Chunks with a neighbor there are deferred
+     * @param readyChunks         Receives the chunks whose neighbors are all classified
+     */
+    public AmbiguousChunkTracker(Set<Long> pendingRegionKeys, Set<Long> unscannedRegionKeys,
+            Consumer<AmbiguousChunk> readyChunks) {
+        this.pendingRegionKeys = new HashSet<>(pendingRegionKeys);
+        this.unscannedRegionKeys = unscannedRegionKeys;
+        this.readyChunks = readyChunks;
+    }
+
+    public void add(AmbiguousChunk chunk) {
+        numberOfChunks++;
+        final long[] neighborRegionKeys = DetailedChunkAnalysis.getNeighborRegionKeys(chunk.chunkX, chunk.chunkZ);
+        for (long regionKey : neighborRegionKeys) {
+            if (unscannedRegionKeys.contains(regionKey)) {
+                deferredChunks.add(chunk);
+                deferredRegionKeys.add(DetailedChunkAnalysis.getRegionKey(chunk.chunkX, chunk.chunkZ));
+                return;
+            }
+        }
+        for (long regionKey : neighborRegionKeys) {
+            if (pendingRegionKeys.contains(regionKey)) {
+                chunk.pendingNeighbors++;
+                chunksByPendingRegion.computeIfAbsent(regionKey, key -> new ArrayList<>()).add(chunk);
+            }
+        }
+        if (chunk.pendingNeighbors == 0) {
+            readyChunks.accept(chunk);
+        } else {
+            numberOfWaitingChunks++;
+            maxWaitingChunks = Math.max(maxWaitingChunks, numberOfWaitingChunks);
+        }
+    }
+
+    public void onRegionCompleted(long regionKey) {
+        pendingRegionKeys.remove(regionKey);
+        final List<AmbiguousChunk> chunks = chunksByPendingRegion.remove(regionKey);
+        if (chunks == null) {
+            return;
+        }
+        for (AmbiguousChunk chunk : chunks) {
+            chunk.pendingNeighbors--;
+            if (chunk.pendingNeighbors == 0) {
+                numberOfWaitingChunks--;
+                readyChunks.accept(chunk);
+            }
+        }
+    }
+
+    // All chunks that were added, including deferred ones
+    public int getNumberOfChunks() {
+        return numberOfChunks;
+    }
+
+    // The most chunks that waited for their neighbors at the same time
+    public int getMaxWaitingChunks() {
+        return maxWaitingChunks;
+    }
+
+    // Chunks with a neighbor in an unscanned region, to add again once it is scanned
+    public List<AmbiguousChunk> getDeferredChunks() {
+        return deferredChunks;
+    }
+
+    public Set<Long> getDeferredRegionKeys() {
+        return deferredRegionKeys;
+    }
+}
@@ -2,6 +2,9 @@ package com.sinthoras.visualprospecting.database.cachebuilder;
 
 import java.io.File;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 import net.minecraft.server.MinecraftServer;
 
@@ -14,48 +17,69 @@ public class AnalysisProgressTracker {
 
     private static int numberOfDimensions = 0;
     private static int dimensionsProcessed = 0;
-    private static int numberOfRegionFiles = 0;
-    private static int regionFilesProcessed = 0;
     private static long lastLogUpdate = 0;
     private static long timestampMS = 0;
+    // Null between dimensions and for dimensions without region files to analyze
+    private static DimensionAnalysisStatistics currentDimension;
+    private static final List<DimensionAnalysisStatistics> finishedDimensions = new ArrayList<>();
 
     public static synchronized void setNumberOfDimensions(int numberOfDimensions) {
         timestampMS = System.currentTimeMillis();
         AnalysisProgressTracker.numberOfDimensions = numberOfDimensions;
         dimensionsProcessed = 0;
+        currentDimension = null;
+        finishedDimensions.clear();
         updateLog();
     }
 
     public static synchronized void dimensionProcessed() {
         dimensionsProcessed++;
+        if (currentDimension != null) {
+            currentDimension.finish();
+            VP.info(currentDimension.toString());
+            finishedDimensions.add(currentDimension);
+            currentDimension = null;
+        }
         updateLog();
     }
 
-    public static synchronized void announceFastDimension(int dimensionId) {
-        final String message = "Processing dimension with id " + dimensionId + " with fast scanning.";
+    /**
+     * Starts collecting the statistics of a dimension. The scan updates them without going through this class, so they
+     * cost no locking.
+     */
+    public static synchronized DimensionAnalysisStatistics announceDimension(int dimensionId,
+            int numberOfRegionFiles) {
+        final String message = "Processing dimension with id " + dimensionId + ".";
         VP.info(message);
         if (Utils.isLogicalClient()) {
             ((MinecraftServerAccessor) MinecraftServer.getServer()).setUserMessage(message);
         }
+        currentDimension = new DimensionAnalysisStatistics(dimensionId, numberOfRegionFiles);
+        updateLog();
+        return currentDimension;
     }
 
-    public static synchronized void announceSlowDimension(int dimensionId) {
-        final String message = "Processing dimension with id " + dimensionId + " with slow (safe) scanning.";
-        VP.info(message);
-        if (Utils.isLogicalClient()) {
-            ((MinecraftServerAccessor) MinecraftServer.getServer()).setUserMessage(message);
-        }
+    public static synchronized void regionFileProcessed() {
+        updateLog();
     }
 
-    public static synchronized void setNumberOfRegionFiles(int numberOfRegionFiles) {
-        AnalysisProgressTracker.numberOfRegionFiles = numberOfRegionFiles;
-        regionFilesProcessed = 0;
-        updateLog();
+    // The statistics of the dimension that is analyzed right now or null if there is none
+    public static synchronized DimensionAnalysisStatistics getCurrentDimensionStatistics() {
+        return currentDimension;
     }
 
-    public static synchronized void regionFileProcessed() {
-        regionFilesProcessed++;
-        updateLog();
+    // The dimension that is processed right now, counted from 1
+    public static synchronized int getCurrentDimension() {
+        return Math.min(dimensionsProcessed + 1, numberOfDimensions);
+    }
+
+    public static synchronized int getNumberOfDimensions() {
+        return numberOfDimensions;
+    }
+
+    // Of the region files in the current dimension
+    public static synchronized int getRegionFilesPercentage() {
+        return currentDimension == null ? 0 : currentDimension.getRegionFilesPercentage();
     }
 
     private static synchronized void updateLog() {
@@ -66,8 +90,9 @@ public class AnalysisProgressTracker {
                     + "/"
                     + numberOfDimensions
                     + ")  "
-                    + (numberOfRegionFiles == 0 ? 0 : ((regionFilesProcessed * 100) / numberOfRegionFiles))
-                    + "%";
+                    + getRegionFilesPercentage()
+                    + "%"
+                    + (currentDimension == null ? "" : " - " + currentDimension.getProgressSummary());
             VP.info(message);
             if (Utils.isLogicalClient()) {
                 // Escape % for String.format
@@ -82,14 +107,35 @@ public class AnalysisProgressTracker {
         format.setMinimumFractionDigits(1);
         format.setMaximumFractionDigits(1);
         final String message = "Parsing complete! Thank you for your patience.  - Duration: "
-                + format.format(elapsedTimeMS / 1000)
+                + format.format(elapsedTimeMS / 1000.0)
                 + "sec";
         VP.info(message);
+        logSummary(elapsedTimeMS);
         if (Utils.isLogicalClient()) {
             ((MinecraftServerAccessor) MinecraftServer.getServer()).setUserMessage(message);
         }
     }
 
+    // Totals over all analyzed dimensions, next to the logged statistics of each one
+    private static void logSummary(long elapsedTimeMS) {
+        long chunks = 0;
+        double compressedMB = 0;
+        for (DimensionAnalysisStatistics dimension : finishedDimensions) {
+            chunks += dimension.getChunks();
+            compressedMB += dimension.getCompressedMB();
+        }
+        final double elapsedSeconds = Math.max(elapsedTimeMS, 1) / 1000.0;
+        VP.info(
+                String.format(
+                        Locale.ROOT,
+                        "Analyzed %d dimensions: %d chunks, %.1f MB, %.0f chunks/s, %.1f MB/s",
+                        finishedDimensions.size(),
+                        chunks,
+                        compressedMB,
+                        chunks / elapsedSeconds,
+                        compressedMB / elapsedSeconds));
+    }
+
     public static synchronized void notifyCorruptFile(File regionFile) {
         final String message = "Encountered corrupt/malformed/modified save file: " + regionFile;
         VP.info(message);
@@ -1,48 +1,129 @@
 package com.sinthoras.visualprospecting.database.cachebuilder;
 
-import java.util.HashSet;
-import java.util.Set;
-
 import com.sinthoras.visualprospecting.VP;
 import com.sinthoras.visualprospecting.database.veintypes.VeinType;
 import com.sinthoras.visualprospecting.database.veintypes.VeinTypeCaching;
+import com.sinthoras.visualprospecting.database.veintypes.VeinTypeMatcher;
 
-import io.xol.enklume.nbt.*;
-
-// A slim, but faster version to identify >90% of veins
+// A slim, but faster version to identify >90% of veins. Chunks that match multiple vein types, mostly because a vein of
+// a neighbor overlaps into them, are resolved by the heights of their ores where possible
 public class ChunkAnalysis {
 
-    private final Set<Short> ores = new HashSet<>();
-    private final Set<VeinType> matchedVeins = new HashSet<>();
+    // Chunks with more matches are left to the second identification pass
+    private static final int MAX_RESOLVED_MATCHES = 8;
+
+    // Resolving by height reuses these per thread instead of allocating them for every ambiguous chunk
+    private static class HeightBuffers {
+
+        private final VeinTypeMatcher veinTypeMatcher;
+        private final long[] oreSetsByHeight;
+        private final int[] oreBlockCounts;
+
+        private HeightBuffers(VeinTypeMatcher veinTypeMatcher) {
+            this.veinTypeMatcher = veinTypeMatcher;
+            oreSetsByHeight = veinTypeMatcher.createOreSetsByHeight();
+            oreBlockCounts = new int[veinTypeMatcher.getNumberOfOres()];
+        }
+    }
+
+    private static final ThreadLocal<HeightBuffers> heightBuffers = new ThreadLocal<>();
+
+    private final VeinTypeMatcher veinTypeMatcher = VeinTypeCaching.veinTypeMatcher;
+    private final long[] ores = veinTypeMatcher.createOreSet();
+    private final VeinType[] matchedVeins = new VeinType[MAX_RESOLVED_MATCHES];
+    private VeinType matchedVein = VeinType.NO_VEIN;
+    private boolean matchesSingleVein = false;
     private int minVeinBlockY = VP.minecraftWorldHeight;
 
-    public void processMinecraftChunk(final NBTCompound chunkRoot) {
-        for (final NBTNamed tileEntity : ((NBTList) chunkRoot.getTag("Level.TileEntities")).elements) {
-            final GregTechOre gtOre = new GregTechOre((NBTCompound) tileEntity);
-            if (gtOre.isValidGTOre) {
-                ores.add(gtOre.metaData);
-                if (minVeinBlockY > gtOre.blockY) {
-                    minVeinBlockY = gtOre.blockY;
+    public void processMinecraftChunk(final GregTechOres gtOres) {
+        for (int ore = 0; ore < gtOres.size(); ore++) {
+            veinTypeMatcher.addOre(ores, gtOres.getMetaData(ore));
+            if (minVeinBlockY > gtOres.getBlockY(ore)) {
+                minVeinBlockY = gtOres.getBlockY(ore);
+            }
+        }
+
+        final int numberOfMatchedVeins = veinTypeMatcher.findMatchingVeinTypes(ores, matchedVeins);
+        if (numberOfMatchedVeins <= 1) {
+            matchesSingleVein = true;
+            matchedVein = numberOfMatchedVeins == 0 ? VeinType.NO_VEIN : matchedVeins[0];
+        } else if (numberOfMatchedVeins <= MAX_RESOLVED_MATCHES) {
+            resolveByHeight(gtOres, numberOfMatchedVeins);
+        }
+    }
+
+    /**
+     * Only one of the matched vein types may have been generated in full: all ores of each of its nine layers were
+     * found one above the other at a height the vein type generates at. Overlapping veins rarely bring all of their
+     * layers along, but to be safe, the vein type must also contain the ore with the most blocks as primary or
+     * secondary ore, like the second identification pass requires. Otherwise, the chunk is left to that pass.
+     */
+    private void resolveByHeight(final GregTechOres gtOres, int numberOfMatchedVeins) {
+        HeightBuffers buffers = heightBuffers.get();
+        if (buffers == null || buffers.veinTypeMatcher != veinTypeMatcher) {
+            buffers = new HeightBuffers(veinTypeMatcher);
+            heightBuffers.set(buffers);
+        }
+        for (int index = 0; index < gtOres.size(); index++) {
+            final int ore = veinTypeMatcher.getOreIndex(gtOres.getMetaData(index));
+            if (ore >= 0) {
+                veinTypeMatcher.addOreAtHeight(buffers.oreSetsByHeight, ore, gtOres.getBlockY(index));
+                buffers.oreBlockCounts[ore]++;
+            }
+        }
+        try {
+            resolveByHeight(buffers.oreSetsByHeight, buffers.oreBlockCounts, numberOfMatchedVeins);
+        } finally {
+            // Only the heights and ores of this chunk were filled
+            for (int index = 0; index < gtOres.size(); index++) {
+                final int ore = veinTypeMatcher.getOreIndex(gtOres.getMetaData(index));
+                if (ore >= 0) {
+                    veinTypeMatcher.clearOresAtHeight(buffers.oreSetsByHeight, gtOres.getBlockY(index));
+                    buffers.oreBlockCounts[ore] = 0;
                 }
             }
         }
     }
 
-    public boolean matchesSingleVein() {
-        for (VeinType veinType : VeinTypeCaching.veinTypes) {
-            if (veinType.matches(ores)) {
-                matchedVeins.add(veinType);
+    private void resolveByHeight(long[] oreSetsByHeight, int[] oreBlockCounts, int numberOfMatchedVeins) {
+        VeinType generatedVein = null;
+        int generatedVeinBlockY = 0;
+        for (int match = 0; match < numberOfMatchedVeins; match++) {
+            final int veinBlockY = veinTypeMatcher.findGeneratedVeinBlockY(oreSetsByHeight, matchedVeins[match]);
+            if (veinBlockY >= 0) {
+                if (generatedVein != null) {
+                    return;
+                }
+                generatedVein = matchedVeins[match];
+                generatedVeinBlockY = veinBlockY;
+            }
+        }
+        if (generatedVein == null) {
+            return;
+        }
+
+        int dominantOre = 0;
+        for (int ore = 1; ore < oreBlockCounts.length; ore++) {
+            if (oreBlockCounts[ore] > oreBlockCounts[dominantOre]) {
+                dominantOre = ore;
             }
         }
-        return matchedVeins.size() <= 1;
+        if (veinTypeMatcher.getOreIndex(generatedVein.primaryOreMeta) == dominantOre
+                || veinTypeMatcher.getOreIndex(generatedVein.secondaryOreMeta) == dominantOre) {
+            matchesSingleVein = true;
+            matchedVein = generatedVein;
+            // The lowest ore could belong to the overlapping vein
+            minVeinBlockY = generatedVeinBlockY;
+        }
+    }
+
+    public boolean matchesSingleVein() {
+        return matchesSingleVein;
     }
 
     // Result only valid if matchesSingleVein() returned true
     public VeinType getMatchedVein() {
-        if (matchedVeins.isEmpty()) {
-            return VeinType.NO_VEIN;
-        }
-        return matchedVeins.stream().findAny().get();
+        return matchedVein;
     }
 
     public int getVeinBlockY() {
@@ -0,0 +1,370 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import com.sinthoras.visualprospecting.Tags;
+import com.sinthoras.visualprospecting.Utils;
+import com.sinthoras.visualprospecting.VP;
+
+/**
+ * Scans the ore chunks of region files in three stages connected by bounded queues:
+ * <ol>
+ * <li>Reader threads fetch the compressed ore chunks of one region file after another</li>
+ * <li>Worker threads decompress and analyze single chunks</li>
+ * <li>The calling thread applies the results of the workers one after another</li>
+ * </ol>
+ * Once all results of a region file are applied, the calling thread is told so, while other region files are still
+ * being scanned.
+ * Disk and CPU work overlap, a single large region file is spread over all workers and the bounded queues keep the
+ * number of chunks in memory small, no matter how fast each stage is.
+ */
+public class ChunkScanPipeline {
+
+    private static final int READER_THREADS = 4;
+    private static final int QUEUED_CHUNKS_PER_WORKER = 64;
+
+    public interface IChunkHandler {
+
+        /**
+         * Called on a worker thread. Must not keep a reference to the ores, the buffer is reused for the next chunk.
+         *
+         * @return Changes to apply on the aggregating thread or null if there are none
+         */
+        Runnable processChunk(GregTechOres ores, int chunkX, int chunkZ);
+
+        /**
+         * Called on the aggregating thread once the results of all chunks of the region file are applied. Region files
+         * that could not be read completely are completed with the chunks that could be read.
+         */
+        default void onRegionFileCompleted(File regionFile) {}
+    }
+
+    // Counts the chunks of a region file whose results are not applied yet, plus one while the file is being read
+    private static class RegionFileProgress {
+
+        private final File regionFile;
+        private final AtomicInteger pendingChunks = new AtomicInteger(1);
+        // Only updated by the reader of the file
+        private final CRC32 oreChunkHash = new CRC32();
+
+        private RegionFileProgress(File regionFile) {
+            this.regionFile = regionFile;
+        }
+    }
+
+    private static class ScannedChunk {
+
+        private final RegionFileProgress regionFile;
+        private final int chunkX;
+        private final int chunkZ;
+        private final RegionFileReader.CompressedChunk chunk;
+
+        private ScannedChunk(RegionFileProgress regionFile, int chunkX, int chunkZ,
+                RegionFileReader.CompressedChunk chunk) {
+            this.regionFile = regionFile;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.chunk = chunk;
+        }
+    }
+
+    // Each worker stops once it takes this, the aggregator stops once it takes the end of results
+    private static final ScannedChunk END_OF_CHUNKS = new ScannedChunk(null, 0, 0, null);
+    private static final Runnable END_OF_RESULTS = () -> {};
+
+    private final Set<File> corruptRegionFiles;
+    private final Map<File, Long> oreChunkHashes;
+    private final ScanBudget budget;
+    private final BooleanSupplier isCancelled;
+    private final DimensionAnalysisStatistics statistics;
+    private final int numberOfWorkers;
+    private final BlockingQueue<ScannedChunk> chunks;
+    private final BlockingQueue<Runnable> results;
+    // After a failure, all stages only drain their queues, so no thread stays blocked
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param corruptRegionFiles Region files that could not be read completely are added here
+     * @param oreChunkHashes     Receives the {@link #hashOreChunks(File, ScanBudget) hash} of every region file that
+     *                           was read completely, computed from the chunks the scan reads anyway
+     * @param budget             Limits the number of workers and how fast region files are read
+     * @param isCancelled        Checked before every region file. Chunks that were already read are still analyzed
+     * @param statistics         Receives the throughput and the time spent in each stage
+     */
+    public ChunkScanPipeline(Set<File> corruptRegionFiles, Map<File, Long> oreChunkHashes, ScanBudget budget,
+            BooleanSupplier isCancelled, DimensionAnalysisStatistics statistics) {
+        this.corruptRegionFiles = corruptRegionFiles;
+        this.oreChunkHashes = oreChunkHashes;
+        this.budget = budget;
+        this.isCancelled = isCancelled;
+        this.statistics = statistics;
+        numberOfWorkers = budget.getWorkerThreads();
+        chunks = new ArrayBlockingQueue<>(numberOfWorkers * QUEUED_CHUNKS_PER_WORKER);
+        results = new ArrayBlockingQueue<>(numberOfWorkers * QUEUED_CHUNKS_PER_WORKER);
+    }
+
+    /**
+     * Returns once all results are applied. A pipeline can only be used once.
+     *
+     * @throws CancellationException If the scan was cancelled before all region files were read
+     */
+    public void scan(List<File> regionFiles, IChunkHandler chunkHandler) {
+        final Queue<File> pendingRegionFiles = new ConcurrentLinkedQueue<>(regionFiles);
+        // More readers than workers would only read ahead of what the workers can analyze
+        final int numberOfReaders = Math
+                .max(1, Math.min(Math.min(READER_THREADS, numberOfWorkers), regionFiles.size()));
+        final AtomicInteger runningReaders = new AtomicInteger(numberOfReaders);
+        final AtomicInteger runningWorkers = new AtomicInteger(numberOfWorkers);
+        final ExecutorService threads = Executors.newFixedThreadPool(numberOfReaders + numberOfWorkers, runnable -> {
+            final Thread thread = new Thread(runnable, Tags.MODNAME + " world scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int reader = 0; reader < numberOfReaders; reader++) {
+            threads.execute(() -> {
+                try {
+                    File regionFile;
+                    while (failure.get() == null && isCancelled.getAsBoolean() == false
+                            && (regionFile = pendingRegionFiles.poll()) != null) {
+                        final RegionFileProgress progress = new RegionFileProgress(regionFile);
+                        try {
+                            readRegionFile(progress);
+                        } finally {
+                            completeChunk(progress, chunkHandler);
+                        }
+                        budget.awaitServerHeadroom(isCancelled);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    if (runningReaders.decrementAndGet() == 0) {
+                        for (int worker = 0; worker < numberOfWorkers; worker++) {
+                            putUninterruptibly(chunks, END_OF_CHUNKS);
+                        }
+                    }
+                }
+            });
+        }
+        for (int worker = 0; worker < numberOfWorkers; worker++) {
+            threads.execute(() -> {
+                try {
+                    analyzeChunks(chunkHandler);
+                } finally {
+                    if (runningWorkers.decrementAndGet() == 0) {
+                        putUninterruptibly(results, END_OF_RESULTS);
+                    }
+                }
+            });
+        }
+
+        Runnable result;
+        while ((result = takeUninterruptibly(results)) != END_OF_RESULTS) {
+            if (failure.get() == null) {
+                try {
+                    result.run();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+        threads.shutdown();
+
+        final Throwable scanFailure = failure.get();
+        if (scanFailure instanceof RuntimeException) {
+            throw (RuntimeException) scanFailure;
+        } else if (scanFailure instanceof Error) {
+            throw (Error) scanFailure;
+        } else if (scanFailure != null) {
+            throw new RuntimeException(scanFailure);
+        } else if (pendingRegionFiles.isEmpty() == false) {
+            throw new CancellationException("World scan cancelled");
+        }
+    }
+
+    private void readRegionFile(RegionFileProgress progress) throws IOException {
+        final File regionFile = progress.regionFile;
+        final Matcher matcher = DimensionAnalysis.REGION_FILE_NAME_PATTERN.matcher(regionFile.getName());
+        if (!matcher.matches()) {
+            VP.warn("Invalid region file found! " + regionFile.getCanonicalPath() + " continuing");
+            return;
+        }
+        final int regionChunkX = Integer.parseInt(matcher.group(1)) << 5;
+        final int regionChunkZ = Integer.parseInt(matcher.group(2)) << 5;
+        try (final RegionFileReader region = new RegionFileReader(regionFile)) {
+            for (int localChunkX = 0; localChunkX < VP.chunksPerRegionFileX; localChunkX++) {
+                for (int localChunkZ = 0; localChunkZ < VP.chunksPerRegionFileZ; localChunkZ++) {
+                    final int chunkX = regionChunkX + localChunkX;
+                    final int chunkZ = regionChunkZ + localChunkZ;
+
+                    // Only process ore chunks
+                    if (isOreChunk(chunkX, chunkZ)) {
+                        final long readStartNS = System.nanoTime();
+                        final RegionFileReader.CompressedChunk chunk = region
+                                .readCompressedChunk(localChunkX, localChunkZ);
+
+                        // chunk == null occurs when a chunk is not yet generated
+                        if (chunk != null) {
+                            statistics.onChunkRead(chunk.getCompressedLength(), System.nanoTime() - readStartNS);
+                            addToHash(progress.oreChunkHash, localChunkX, localChunkZ, chunk);
+                            budget.acquireReadBytes(chunk.getCompressedLength());
+                            progress.pendingChunks.incrementAndGet();
+                            putUninterruptibly(chunks, new ScannedChunk(progress, chunkX, chunkZ, chunk));
+                        }
+                    }
+                }
+            }
+            oreChunkHashes.put(regionFile, progress.oreChunkHash.getValue());
+            statistics.onRegionFileProcessed();
+            AnalysisProgressTracker.regionFileProcessed();
+        } catch (DataFormatException | IOException e) {
+            notifyCorruptFile(regionFile);
+        }
+    }
+
+    /**
+     * Checksum of the generated ore chunks of a region file, the only part of it an analysis depends on. Equals the
+     * hash a scan passes on for the same file, but reads nothing besides the header and the ore chunks.
+     *
+     * @param budget Limits how fast the ore chunks are read
+     */
+    public static long hashOreChunks(File regionFile, ScanBudget budget) throws IOException, DataFormatException {
+        final CRC32 hash = new CRC32();
+        final Matcher matcher = DimensionAnalysis.REGION_FILE_NAME_PATTERN.matcher(regionFile.getName());
+        if (!matcher.matches()) {
+            return hash.getValue();
+        }
+        final int regionChunkX = Integer.parseInt(matcher.group(1)) << 5;
+        final int regionChunkZ = Integer.parseInt(matcher.group(2)) << 5;
+        try (final RegionFileReader region = new RegionFileReader(regionFile)) {
+            for (int localChunkX = 0; localChunkX < VP.chunksPerRegionFileX; localChunkX++) {
+                for (int localChunkZ = 0; localChunkZ < VP.chunksPerRegionFileZ; localChunkZ++) {
+                    if (isOreChunk(regionChunkX + localChunkX, regionChunkZ + localChunkZ)) {
+                        final RegionFileReader.CompressedChunk chunk = region
+                                .readCompressedChunk(localChunkX, localChunkZ);
+                        if (chunk != null) {
+                            addToHash(hash, localChunkX, localChunkZ, chunk);
+                            budget.acquireReadBytes(chunk.getCompressedLength());
+                        }
+                    }
+                }
+            }
+        }
+        return hash.getValue();
+    }
+
+    private static boolean isOreChunk(int chunkX, int chunkZ) {
+        return chunkX == Utils.mapToCenterOreChunkCoord(chunkX) && chunkZ == Utils.mapToCenterOreChunkCoord(chunkZ);
+    }
+
+    // The position is part of the hash, so moving a chunk within the file changes it
+    private static void addToHash(CRC32 hash, int localChunkX, int localChunkZ,
+            RegionFileReader.CompressedChunk chunk) {
+        hash.update(localChunkX);
+        hash.update(localChunkZ);
+        chunk.updateChecksum(hash);
+    }
+
+    private void analyzeChunks(IChunkHandler chunkHandler) {
+        final GregTechOres ores = new GregTechOres();
+        ScannedChunk chunk;
+        while ((chunk = takeUninterruptibly(chunks)) != END_OF_CHUNKS) {
+            if (failure.get() != null) {
+                continue;
+            }
+            try {
+                ores.clear();
+                final long inflateStartNS = System.nanoTime();
+                final ByteBuffer decompressedChunk = RegionFileReader.decompress(chunk.chunk);
+                final long parseStartNS = System.nanoTime();
+                statistics.onChunkInflated(parseStartNS - inflateStartNS);
+                GregTechOreExtractor.extract(decompressedChunk, ores);
+                final long matchStartNS = System.nanoTime();
+                statistics.onChunkParsed(matchStartNS - parseStartNS);
+                final Runnable result = chunkHandler.processChunk(ores, chunk.chunkX, chunk.chunkZ);
+                statistics.onChunkMatched(System.nanoTime() - matchStartNS);
+                if (result != null) {
+                    final RegionFileProgress regionFile = chunk.regionFile;
+                    putUninterruptibly(results, () -> {
+                        result.run();
+                        if (regionFile.pendingChunks.decrementAndGet() == 0) {
+                            chunkHandler.onRegionFileCompleted(regionFile.regionFile);
+                        }
+                    });
+                    continue;
+                }
+            } catch (DataFormatException | IOException e) {
+                notifyCorruptFile(chunk.regionFile.regionFile);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                continue;
+            }
+            completeChunk(chunk.regionFile, chunkHandler);
+        }
+    }
+
+    // For chunks without a result to apply. Completing the region file is left to the aggregating thread
+    private void completeChunk(RegionFileProgress regionFile, IChunkHandler chunkHandler) {
+        if (regionFile.pendingChunks.decrementAndGet() == 0) {
+            putUninterruptibly(results, () -> chunkHandler.onRegionFileCompleted(regionFile.regionFile));
+        }
+    }
+
+    private void notifyCorruptFile(File regionFile) {
+        if (corruptRegionFiles.add(regionFile)) {
+            statistics.onCorruptRegionFile();
+            AnalysisProgressTracker.notifyCorruptFile(regionFile);
+        }
+    }
+
+    // The stages only wait for each other, so waiting is never interrupted on purpose
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T takeUninterruptibly(BlockingQueue<T> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
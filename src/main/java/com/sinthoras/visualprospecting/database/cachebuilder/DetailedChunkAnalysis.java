@@ -1,26 +1,36 @@
 package com.sinthoras.visualprospecting.database.cachebuilder;
 
-import java.util.*;
-import java.util.stream.IntStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.VP;
-import com.sinthoras.visualprospecting.database.OreVeinPosition;
+import com.sinthoras.visualprospecting.database.ConcurrentLongIntHashMap;
 import com.sinthoras.visualprospecting.database.ServerCache;
 import com.sinthoras.visualprospecting.database.veintypes.VeinType;
 import com.sinthoras.visualprospecting.database.veintypes.VeinTypeCaching;
 
-import io.xol.enklume.nbt.*;
-
 // Slower, but more sophisticated approach to identify overlapping veins
 public class DetailedChunkAnalysis {
 
+    // Offsets of the eight neighboring ore chunks
+    private static final int[] NEIGHBOR_OFFSET_X = { -3, 0, 3, 3, 3, 0, -3, -3 };
+    private static final int[] NEIGHBOR_OFFSET_Z = { 3, 3, 3, 0, -3, -3, -3, 0 };
+    private static final int INITIAL_CAPACITY = 32;
+
     private final int dimensionId;
     public final int chunkX;
     public final int chunkZ;
-    // For each height we count how often a ore (short) has occured
-    @SuppressWarnings("unchecked")
-    private final Map<Short, Integer>[] oresPerY = new HashMap[VP.minecraftWorldHeight];
+    // For each height we count how often a ore (short) has occured. The entries are sorted by height and then by ore,
+    // the ones at blockY are found from firstOreAtY[blockY] up to firstOreAtY[blockY + 1]. Ores that belong to a
+    // neighbor are removed by setting their number of blocks to 0
+    private final int[] firstOreAtY = new int[VP.minecraftWorldHeight + 1];
+    private short[] oreMetaData = new short[0];
+    private int[] oreBlockCount = new int[0];
 
     public DetailedChunkAnalysis(int dimensionId, int chunkX, int chunkZ) {
         this.dimensionId = dimensionId;
@@ -28,92 +38,134 @@ public class DetailedChunkAnalysis {
         this.chunkZ = chunkZ;
     }
 
-    public void processMinecraftChunk(final NBTCompound chunkRoot) {
-        for (final NBTNamed tileEntity : ((NBTList) chunkRoot.getTag("Level.TileEntities")).elements) {
-            final GregTechOre gtOre = new GregTechOre((NBTCompound) tileEntity);
-            if (gtOre.isValidGTOre) {
-                if (oresPerY[gtOre.blockY] == null) {
-                    oresPerY[gtOre.blockY] = new HashMap<>();
+    public void processMinecraftChunk(final GregTechOres gtOres) {
+        // Sorting height and ore packed into one int groups equal ores without any map
+        final int[] packedOres = new int[gtOres.size()];
+        for (int ore = 0; ore < gtOres.size(); ore++) {
+            packedOres[ore] = (gtOres.getBlockY(ore) << Short.SIZE) | (gtOres.getMetaData(ore) & 0xFFFF);
+        }
+        Arrays.sort(packedOres);
+
+        oreMetaData = new short[packedOres.length];
+        oreBlockCount = new int[packedOres.length];
+        int numberOfOres = 0;
+        int blockY = 0;
+        for (int ore = 0; ore < packedOres.length; ore++) {
+            if (ore > 0 && packedOres[ore] == packedOres[ore - 1]) {
+                oreBlockCount[numberOfOres - 1]++;
+                continue;
+            }
+            final int oreBlockY = packedOres[ore] >>> Short.SIZE;
+            while (blockY < oreBlockY) {
+                firstOreAtY[++blockY] = numberOfOres;
+            }
+            oreMetaData[numberOfOres] = (short) packedOres[ore];
+            oreBlockCount[numberOfOres] = 1;
+            numberOfOres++;
+        }
+        while (blockY < VP.minecraftWorldHeight) {
+            firstOreAtY[++blockY] = numberOfOres;
+        }
+    }
+
+    /**
+     * Compact form to keep the chunk around until the second identification pass: the chunk coordinates, followed by
+     * (blockY, number of ores, number of ores * (ore, number of blocks)) for every height with ores, all as varints.
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(chunkX);
+            output.writeInt(chunkZ);
+            for (int blockY = 0; blockY < VP.minecraftWorldHeight; blockY++) {
+                int numberOfOres = 0;
+                for (int ore = firstOreAtY[blockY]; ore < firstOreAtY[blockY + 1]; ore++) {
+                    if (oreBlockCount[ore] > 0) {
+                        numberOfOres++;
+                    }
                 }
-                if (oresPerY[gtOre.blockY].containsKey(gtOre.metaData) == false) {
-                    oresPerY[gtOre.blockY].put(gtOre.metaData, 0);
+                if (numberOfOres > 0) {
+                    Utils.writeVarInt(output, blockY);
+                    Utils.writeVarInt(output, numberOfOres);
+                    for (int ore = firstOreAtY[blockY]; ore < firstOreAtY[blockY + 1]; ore++) {
+                        if (oreBlockCount[ore] > 0) {
+                            Utils.writeVarInt(output, oreMetaData[ore] & 0xFFFF);
+                            Utils.writeVarInt(output, oreBlockCount[ore]);
+                        }
+                    }
                 }
-                oresPerY[gtOre.blockY].put(gtOre.metaData, oresPerY[gtOre.blockY].get(gtOre.metaData) + 1);
             }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new UncheckedIOException(e);
         }
+        return bytes.toByteArray();
     }
 
-    public void cleanUpWithNeighbors(final Map<Long, Integer> veinChunkY) {
-        final OreVeinPosition[] neighbors = new OreVeinPosition[] {
-                ServerCache.instance.getOreVein(dimensionId, chunkX - 3, chunkZ + 3),
-                ServerCache.instance.getOreVein(dimensionId, chunkX, chunkZ + 3),
-                ServerCache.instance.getOreVein(dimensionId, chunkX + 3, chunkZ + 3),
-                ServerCache.instance.getOreVein(dimensionId, chunkX + 3, chunkZ),
-                ServerCache.instance.getOreVein(dimensionId, chunkX + 3, chunkZ - 3),
-                ServerCache.instance.getOreVein(dimensionId, chunkX, chunkZ - 3),
-                ServerCache.instance.getOreVein(dimensionId, chunkX - 3, chunkZ - 3),
-                ServerCache.instance.getOreVein(dimensionId, chunkX - 3, chunkZ) };
-        final int[] neighborVeinBlockY = new int[] {
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX - 3),
-                                Utils.mapToCenterOreChunkCoord(chunkZ + 3)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX),
-                                Utils.mapToCenterOreChunkCoord(chunkZ + 3)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX + 3),
-                                Utils.mapToCenterOreChunkCoord(chunkZ + 3)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX + 3),
-                                Utils.mapToCenterOreChunkCoord(chunkZ)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX + 3),
-                                Utils.mapToCenterOreChunkCoord(chunkZ - 3)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX),
-                                Utils.mapToCenterOreChunkCoord(chunkZ - 3)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX - 3),
-                                Utils.mapToCenterOreChunkCoord(chunkZ - 3)),
-                        0),
-                veinChunkY.getOrDefault(
-                        Utils.chunkCoordsToKey(
-                                Utils.mapToCenterOreChunkCoord(chunkX - 3),
-                                Utils.mapToCenterOreChunkCoord(chunkZ)),
-                        0) };
+    // Expects the heights in ascending order, as written by toBytes
+    public static DetailedChunkAnalysis fromBytes(int dimensionId, ByteBuffer bytes) {
+        final int chunkX = bytes.getInt();
+        final int chunkZ = bytes.getInt();
+        final DetailedChunkAnalysis chunk = new DetailedChunkAnalysis(dimensionId, chunkX, chunkZ);
+        short[] oreMetaData = new short[INITIAL_CAPACITY];
+        int[] oreBlockCount = new int[INITIAL_CAPACITY];
+        int numberOfOres = 0;
+        int lastBlockY = 0;
+        while (bytes.hasRemaining()) {
+            final int blockY = Utils.readVarInt(bytes);
+            final int numberOfOresAtY = Utils.readVarInt(bytes);
+            while (lastBlockY < blockY) {
+                chunk.firstOreAtY[++lastBlockY] = numberOfOres;
+            }
+            if (numberOfOres + numberOfOresAtY > oreMetaData.length) {
+                final int capacity = Math.max(oreMetaData.length * 2, numberOfOres + numberOfOresAtY);
+                oreMetaData = Arrays.copyOf(oreMetaData, capacity);
+                oreBlockCount = Arrays.copyOf(oreBlockCount, capacity);
+            }
+            for (int ore = 0; ore < numberOfOresAtY; ore++) {
+                oreMetaData[numberOfOres] = (short) Utils.readVarInt(bytes);
+                oreBlockCount[numberOfOres] = Utils.readVarInt(bytes);
+                numberOfOres++;
+            }
+        }
+        while (lastBlockY < VP.minecraftWorldHeight) {
+            chunk.firstOreAtY[++lastBlockY] = numberOfOres;
+        }
+        chunk.oreMetaData = oreMetaData;
+        chunk.oreBlockCount = oreBlockCount;
+        return chunk;
+    }
 
+    /**
+     * @param veinChunkY Vein heights of the ore chunks identified by the first pass
+     * @param cache      Holds the veins of the neighboring ore chunks
+     */
+    public void cleanUpWithNeighbors(final ConcurrentLongIntHashMap veinChunkY, final ServerCache cache) {
         // Remove all generated ores from neighbors. They could also be generated in the same chunk,
         // but that case is rare and therefore, neglected
-        for (int neighborId = 0; neighborId < neighbors.length; neighborId++) {
-            final OreVeinPosition neighbor = neighbors[neighborId];
-            final boolean atCoordinateAxis = Math.abs(neighbor.chunkX - chunkX) < 3
-                    || Math.abs(neighbor.chunkZ - chunkZ) < 3;
+        for (int neighborId = 0; neighborId < NEIGHBOR_OFFSET_X.length; neighborId++) {
+            final int neighborChunkX = chunkX + NEIGHBOR_OFFSET_X[neighborId];
+            final int neighborChunkZ = chunkZ + NEIGHBOR_OFFSET_Z[neighborId];
+            final VeinType neighborVeinType = cache.getOreVeinType(dimensionId, neighborChunkX, neighborChunkZ);
+            final boolean atCoordinateAxis = NEIGHBOR_OFFSET_X[neighborId] == 0 || NEIGHBOR_OFFSET_Z[neighborId] == 0;
             final boolean canOverlap = atCoordinateAxis
-                    ? neighbor.veinType.canOverlapIntoNeighborOreChunkAtCoordinateAxis()
-                    : neighbor.veinType.canOverlapIntoNeighborOreChunk();
-            if (neighbor.veinType != VeinType.NO_VEIN && canOverlap) {
-                final int veinBlockY = neighborVeinBlockY[neighborId];
+                    ? neighborVeinType.canOverlapIntoNeighborOreChunkAtCoordinateAxis()
+                    : neighborVeinType.canOverlapIntoNeighborOreChunk();
+            if (neighborVeinType != VeinType.NO_VEIN && canOverlap) {
+                final int veinBlockY = veinChunkY.get(
+                        Utils.chunkCoordsToKey(
+                                Utils.mapToCenterOreChunkCoord(neighborChunkX),
+                                Utils.mapToCenterOreChunkCoord(neighborChunkZ)));
                 for (int layerBlockY = 0; layerBlockY < VeinType.veinHeight; layerBlockY++) {
                     final int blockY = veinBlockY + layerBlockY;
-                    if (blockY > 255) {
+                    if (blockY >= VP.minecraftWorldHeight) {
                         break;
                     }
-                    if (oresPerY[blockY] != null) {
-                        for (short metaData : neighbor.veinType.getOresAtLayer(layerBlockY)) {
-                            oresPerY[blockY].remove(metaData);
+                    for (short metaData : neighborVeinType.getOreMetaDataAtLayer(layerBlockY)) {
+                        final int ore = findOre(blockY, metaData);
+                        if (ore >= 0) {
+                            oreBlockCount[ore] = 0;
                         }
                     }
                 }
@@ -121,47 +173,131 @@ public class DetailedChunkAnalysis {
         }
     }
 
+    // The regions of the neighboring ore chunks, one per neighbor. Region coordinates are packed like chunk ones
+    public static long[] getNeighborRegionKeys(int chunkX, int chunkZ) {
+        final long[] regionKeys = new long[NEIGHBOR_OFFSET_X.length];
+        for (int neighborId = 0; neighborId < NEIGHBOR_OFFSET_X.length; neighborId++) {
+            regionKeys[neighborId] = getRegionKey(
+                    chunkX + NEIGHBOR_OFFSET_X[neighborId],
+                    chunkZ + NEIGHBOR_OFFSET_Z[neighborId]);
+        }
+        return regionKeys;
+    }
+
+    public static long getRegionKey(int chunkX, int chunkZ) {
+        return Utils.chunkCoordsToKey(chunkX >> 5, chunkZ >> 5);
+    }
+
     public VeinType getMatchedVein() {
-        final Set<VeinType> matchedVeins = new HashSet<>();
+        final int dominantOre = findDominantOre();
+        if (dominantOre < 0) {
+            return VeinType.NO_VEIN;
+        }
 
-        final Map<Short, Integer> allOres = new HashMap<>();
-        for (Map<Short, Integer> oreLevel : oresPerY) {
-            if (oreLevel != null && oreLevel.isEmpty() == false) {
-                oreLevel.forEach((metaData, numberOfBlocks) -> allOres.merge(metaData, numberOfBlocks, Integer::sum));
+        // Only the last match is kept, the number of matches is all that is needed to decide
+        VeinType matchedVein = VeinType.NO_VEIN;
+        int numberOfMatchedVeins = 0;
+        for (VeinType veinType : VeinTypeCaching.veinTypes) {
+            if (matchesWithDominantOre(veinType, oreMetaData[dominantOre])) {
+                matchedVein = veinType;
+                numberOfMatchedVeins++;
             }
         }
 
-        final Optional<Short> dominantOre = allOres.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder())).map(Map.Entry::getKey).findFirst();
-        if (dominantOre.isPresent()) {
+        if (numberOfMatchedVeins >= 2) {
+            matchedVein = VeinType.NO_VEIN;
+            numberOfMatchedVeins = 0;
             for (VeinType veinType : VeinTypeCaching.veinTypes) {
-                if (veinType.matchesWithSpecificPrimaryOrSecondary(allOres.keySet(), dominantOre.get())) {
-                    matchedVeins.add(veinType);
+                if (matchesWithDominantOre(veinType, oreMetaData[dominantOre]) && isOreVeinGenerated(veinType)) {
+                    matchedVein = veinType;
+                    numberOfMatchedVeins++;
+                }
+            }
+        }
+        return numberOfMatchedVeins == 1 ? matchedVein : VeinType.NO_VEIN;
+    }
+
+    // Returns the index of an entry of the ore with the most blocks or -1 if there is none. A chunk only holds a few
+    // dozen entries, so summing them up in place is cheaper than filling a map
+    private int findDominantOre() {
+        final int numberOfOres = firstOreAtY[VP.minecraftWorldHeight];
+        int dominantOre = -1;
+        int dominantOreBlockCount = 0;
+        for (int ore = 0; ore < numberOfOres; ore++) {
+            if (oreBlockCount[ore] == 0 || isCountedBefore(ore)) {
+                continue;
+            }
+            int blockCount = 0;
+            for (int otherOre = ore; otherOre < numberOfOres; otherOre++) {
+                if (oreMetaData[otherOre] == oreMetaData[ore]) {
+                    blockCount += oreBlockCount[otherOre];
                 }
             }
+            if (blockCount > dominantOreBlockCount) {
+                dominantOre = ore;
+                dominantOreBlockCount = blockCount;
+            }
+        }
+        return dominantOre;
+    }
+
+    private boolean isCountedBefore(int ore) {
+        for (int otherOre = 0; otherOre < ore; otherOre++) {
+            if (oreMetaData[otherOre] == oreMetaData[ore] && oreBlockCount[otherOre] > 0) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        if (matchedVeins.size() == 1) {
-            return matchedVeins.stream().findAny().get();
-        } else if (matchedVeins.size() >= 2) {
-            matchedVeins.removeIf(
-                    veinType -> IntStream.range(veinType.minBlockY, veinType.maxBlockY).boxed()
-                            .noneMatch(blockY -> isOreVeinGeneratedAtHeight(veinType, blockY)));
+    private boolean matchesWithDominantOre(VeinType veinType, short dominantOreMetaData) {
+        return (veinType.primaryOreMeta == dominantOreMetaData || veinType.secondaryOreMeta == dominantOreMetaData)
+                && containsOre(veinType.primaryOreMeta)
+                && containsOre(veinType.secondaryOreMeta)
+                && containsOre(veinType.inBetweenOreMeta)
+                && containsOre(veinType.sporadicOreMeta);
+    }
+
+    private boolean containsOre(short metaData) {
+        final int numberOfOres = firstOreAtY[VP.minecraftWorldHeight];
+        for (int ore = 0; ore < numberOfOres; ore++) {
+            if (oreMetaData[ore] == metaData && oreBlockCount[ore] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            if (matchedVeins.size() == 1) {
-                return matchedVeins.stream().findAny().get();
+    private boolean isOreVeinGenerated(VeinType veinType) {
+        for (int blockY = veinType.minBlockY; blockY < veinType.maxBlockY; blockY++) {
+            if (isOreVeinGeneratedAtHeight(veinType, blockY)) {
+                return true;
             }
         }
-        return VeinType.NO_VEIN;
+        return false;
     }
 
     private boolean isOreVeinGeneratedAtHeight(VeinType veinType, int blockY) {
         for (int layer = 0; layer < VeinType.veinHeight; layer++) {
-            if (oresPerY[blockY + layer] == null
-                    || oresPerY[blockY + layer].keySet().containsAll(veinType.getOresAtLayer(layer)) == false) {
+            if (blockY + layer >= VP.minecraftWorldHeight) {
                 return false;
             }
+            for (short metaData : veinType.getOreMetaDataAtLayer(layer)) {
+                if (findOre(blockY + layer, metaData) < 0) {
+                    return false;
+                }
+            }
         }
         return true;
     }
+
+    // Returns the index of the ore at the given height or -1 if it is not there
+    private int findOre(int blockY, short metaData) {
+        for (int ore = firstOreAtY[blockY]; ore < firstOreAtY[blockY + 1]; ore++) {
+            if (oreMetaData[ore] == metaData) {
+                return oreBlockCount[ore] > 0 ? ore : -1;
+            }
+        }
+        return -1;
+    }
 }
@@ -2,106 +2,251 @@ package com.sinthoras.visualprospecting.database.cachebuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.DataFormatException;
 
-import com.sinthoras.visualprospecting.Config;
+import com.sinthoras.visualprospecting.Tags;
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.VP;
+import com.sinthoras.visualprospecting.database.ConcurrentLongIntHashMap;
 import com.sinthoras.visualprospecting.database.ServerCache;
-import com.sinthoras.visualprospecting.database.veintypes.VeinType;
+import com.sinthoras.visualprospecting.database.cachebuilder.AmbiguousChunkTracker.AmbiguousChunk;
 
-import io.xol.enklume.MinecraftRegion;
 import io.xol.enklume.MinecraftWorld;
-import io.xol.enklume.nbt.NBTCompound;
 
 public class DimensionAnalysis {
 
+    static final Pattern REGION_FILE_NAME_PATTERN = Pattern.compile("^r\\.(-?\\d+)\\.(-?\\d+)\\.mca$");
+    private static final int QUEUED_SECOND_PASS_CHUNKS_PER_THREAD = 64;
+
     public final int dimensionId;
+    // Receives the identified veins
+    private final ServerCache cache;
+    private final ScanBudget budget;
+    private final BooleanSupplier isCancelled;
+    private final Set<File> corruptRegionFiles = ConcurrentHashMap.newKeySet();
+    private final Map<File, Long> oreChunkHashes = new ConcurrentHashMap<>();
+    private DimensionAnalysisStatistics statistics;
 
     public DimensionAnalysis(int dimensionId) {
-        this.dimensionId = dimensionId;
+        this(dimensionId, ServerCache.instance, ScanBudget.UNLIMITED, () -> false);
     }
 
-    private interface IChunkHandler {
-
-        void processChunk(NBTCompound root, int chunkX, int chunkZ);
+    /**
+     * @param cache       Receives the identified veins and is asked for the veins of neighboring ore chunks
+     * @param budget      Limits the threads and disk reads of the analysis and when it pauses for the server
+     * @param isCancelled Checked regularly. Once it returns true, the analysis stops with a
+     *                    {@link CancellationException}
+     */
+    public DimensionAnalysis(int dimensionId, ServerCache cache, ScanBudget budget, BooleanSupplier isCancelled) {
+        this.dimensionId = dimensionId;
+        this.cache = cache;
+        this.budget = budget;
+        this.isCancelled = isCancelled;
     }
 
     public void processMinecraftWorld(MinecraftWorld world) throws IOException {
-        final Map<Long, Integer> veinBlockY = new ConcurrentHashMap<>();
-        final List<File> regionFiles = world.getAllRegionFiles(dimensionId);
-        final long dimensionSizeMB = regionFiles.stream().mapToLong(File::length).sum() >> 20;
+        processRegionFiles(world.getAllRegionFiles(dimensionId));
+    }
 
-        if (dimensionSizeMB <= Config.maxDimensionSizeMBForFastScanning) {
-            AnalysisProgressTracker.announceFastDimension(dimensionId);
-            AnalysisProgressTracker.setNumberOfRegionFiles(regionFiles.size());
+    /**
+     * Analyzes only the given region files of this dimension. Veins in other regions stay as they are in the cache.
+     * Their heights are unknown, so they are not considered when separating overlapping veins at the region borders.
+     */
+    public void processRegionFiles(List<File> regionFiles) throws IOException {
+        processRegionFiles(regionFiles, Integer.MAX_VALUE, completedRegionFiles -> {});
+    }
 
-            final Map<Long, DetailedChunkAnalysis> chunksForSecondIdentificationPass = new ConcurrentHashMap<>();
+    /**
+     * Like {@link #processRegionFiles(List)}, but analyzes the region files in segments of neighboring regions. After
+     * each segment, the region files whose veins are all in the cache are passed to the checkpoint. Chunks with a
+     * neighbor in a later segment wait for it, so the result is the same as if all region files were analyzed at once.
+     *
+     * @param regionFilesPerSegment Number of region files that are scanned before the next checkpoint
+     * @param checkpoint            Called on this thread. Every region file is passed exactly once
+     */
+    public void processRegionFiles(List<File> regionFiles, int regionFilesPerSegment,
+            Consumer<List<File>> checkpoint) throws IOException {
+        // Only written by the aggregating thread of the scan, but read by the second pass
+        final ConcurrentLongIntHashMap veinBlockY = new ConcurrentLongIntHashMap(0);
+
+        statistics = AnalysisProgressTracker.announceDimension(dimensionId, regionFiles.size());
+
+        // Column by column, so a segment only borders on the previous and the next one
+        final List<File> sortedRegionFiles = new ArrayList<>(regionFiles);
+        sortedRegionFiles.sort(
+                Comparator.comparingInt((File regionFile) -> Utils.keyToChunkX(getRegionKey(regionFile)))
+                        .thenComparingInt(regionFile -> Utils.keyToChunkZ(getRegionKey(regionFile))));
+        final Set<Long> unscannedRegionKeys = new HashSet<>();
+        for (File regionFile : sortedRegionFiles) {
+            unscannedRegionKeys.add(getRegionKey(regionFile));
+        }
+        final List<File> incompleteRegionFiles = new ArrayList<>();
+        List<AmbiguousChunk> deferredChunks = Collections.emptyList();
 
-            regionFiles.parallelStream().forEach(regionFile -> {
-                executeForEachGeneratedOreChunk(regionFile, (root, chunkX, chunkZ) -> {
-                    final ChunkAnalysis chunk = new ChunkAnalysis();
-                    chunk.processMinecraftChunk(root);
+        // The second pass uses no more threads than the scan
+        final ForkJoinPool secondPassThreads = new ForkJoinPool(budget.getWorkerThreads(), pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(Tags.MODNAME + " second identification pass");
+            return thread;
+        }, null, false);
 
-                    if (chunk.matchesSingleVein()) {
-                        ServerCache.instance
-                                .notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, chunk.getMatchedVein());
-                        veinBlockY.put(Utils.chunkCoordsToKey(chunkX, chunkZ), chunk.getVeinBlockY());
-                    } else {
-                        final DetailedChunkAnalysis detailedChunk = new DetailedChunkAnalysis(
-                                dimensionId,
-                                chunkX,
-                                chunkZ);
-                        detailedChunk.processMinecraftChunk(root);
-                        chunksForSecondIdentificationPass.put(Utils.chunkCoordsToKey(chunkX, chunkZ), detailedChunk);
+        try {
+            int segmentStart = 0;
+            while (segmentStart < sortedRegionFiles.size()) {
+                final int segmentEnd = segmentStart
+                        + Math.min(regionFilesPerSegment, sortedRegionFiles.size() - segmentStart);
+                final List<File> segment = sortedRegionFiles.subList(segmentStart, segmentEnd);
+                for (File regionFile : segment) {
+                    unscannedRegionKeys.remove(getRegionKey(regionFile));
+                }
+                incompleteRegionFiles.addAll(segment);
+
+                final AmbiguousChunkTracker ambiguousChunks = processSegment(
+                        segment,
+                        deferredChunks,
+                        veinBlockY,
+                        unscannedRegionKeys,
+                        secondPassThreads);
+                deferredChunks = ambiguousChunks.getDeferredChunks();
+
+                final List<File> completedRegionFiles = new ArrayList<>();
+                incompleteRegionFiles.removeIf(regionFile -> {
+                    if (ambiguousChunks.getDeferredRegionKeys().contains(getRegionKey(regionFile))) {
+                        return false;
                     }
+                    completedRegionFiles.add(regionFile);
+                    return true;
                 });
-            });
+                checkpoint.accept(completedRegionFiles);
+                segmentStart = segmentEnd;
+            }
+        } finally {
+            secondPassThreads.shutdown();
+        }
+    }
 
-            chunksForSecondIdentificationPass.values().parallelStream().forEach(chunk -> {
-                chunk.cleanUpWithNeighbors(veinBlockY);
-                ServerCache.instance
-                        .notifyOreVeinGeneration(dimensionId, chunk.chunkX, chunk.chunkZ, chunk.getMatchedVein());
-            });
-        } else {
-            AnalysisProgressTracker.announceSlowDimension(dimensionId);
-            AnalysisProgressTracker.setNumberOfRegionFiles(regionFiles.size() * 2);
+    /**
+     * Every region file is only read once. Chunks that match multiple veins are handed to the second identification
+     * pass as soon as the first pass classified the ore chunks around them, while the scan goes on.
+     *
+     * @param unscannedRegionKeys Chunks with a neighbor in one of these regions are deferred to the next segment
+     * @return Holds the deferred chunks and their regions
+     */
+    private AmbiguousChunkTracker processSegment(List<File> regionFiles, List<AmbiguousChunk> previouslyDeferredChunks,
+            ConcurrentLongIntHashMap veinBlockY, Set<Long> unscannedRegionKeys, ForkJoinPool secondPassThreads) {
+        final Set<Long> regionKeys = new HashSet<>();
+        for (File regionFile : regionFiles) {
+            regionKeys.add(getRegionKey(regionFile));
+        }
+        final AtomicReference<Throwable> secondPassFailure = new AtomicReference<>();
+        // Once the second pass falls behind, the scan waits for it instead of queueing up chunks
+        final Semaphore queuedSecondPassChunks = new Semaphore(
+                budget.getWorkerThreads() * QUEUED_SECOND_PASS_CHUNKS_PER_THREAD);
+        final AmbiguousChunkTracker ambiguousChunks = new AmbiguousChunkTracker(
+                regionKeys,
+                unscannedRegionKeys,
+                chunk -> {
+                    queuedSecondPassChunks.acquireUninterruptibly();
+                    secondPassThreads.execute(() -> {
+                        try {
+                            processAmbiguousChunk(chunk, veinBlockY);
+                        } catch (Throwable e) {
+                            secondPassFailure.compareAndSet(null, e);
+                        } finally {
+                            queuedSecondPassChunks.release();
+                        }
+                    });
+                });
+
+        try {
+            previouslyDeferredChunks.forEach(ambiguousChunks::add);
+            scanOreChunks(regionFiles, new ChunkScanPipeline.IChunkHandler() {
 
-            regionFiles.parallelStream().forEach(regionFile -> {
-                executeForEachGeneratedOreChunk(regionFile, (root, chunkX, chunkZ) -> {
+                @Override
+                public Runnable processChunk(GregTechOres ores, int chunkX, int chunkZ) {
                     final ChunkAnalysis chunk = new ChunkAnalysis();
-                    chunk.processMinecraftChunk(root);
+                    chunk.processMinecraftChunk(ores);
 
                     if (chunk.matchesSingleVein()) {
-                        ServerCache.instance
-                                .notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, chunk.getMatchedVein());
-                        veinBlockY.put(Utils.chunkCoordsToKey(chunkX, chunkZ), chunk.getVeinBlockY());
-                    }
-                });
-            });
-
-            regionFiles.parallelStream().forEach(regionFile -> {
-                executeForEachGeneratedOreChunk(regionFile, (root, chunkX, chunkZ) -> {
-                    if (ServerCache.instance.getOreVein(dimensionId, chunkX, chunkZ).veinType == VeinType.NO_VEIN) {
+                        statistics.onFirstPassHit();
+                        return () -> {
+                            cache.notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, chunk.getMatchedVein());
+                            veinBlockY.put(Utils.chunkCoordsToKey(chunkX, chunkZ), chunk.getVeinBlockY());
+                        };
+                    } else {
                         final DetailedChunkAnalysis detailedChunk = new DetailedChunkAnalysis(
                                 dimensionId,
                                 chunkX,
                                 chunkZ);
-                        detailedChunk.processMinecraftChunk(root);
-                        detailedChunk.cleanUpWithNeighbors(veinBlockY);
-                        ServerCache.instance.notifyOreVeinGeneration(
-                                dimensionId,
-                                detailedChunk.chunkX,
-                                detailedChunk.chunkZ,
-                                detailedChunk.getMatchedVein());
+                        detailedChunk.processMinecraftChunk(ores);
+                        final AmbiguousChunk compactChunk = new AmbiguousChunk(
+                                detailedChunk.toBytes(),
+                                chunkX,
+                                chunkZ);
+                        return () -> ambiguousChunks.add(compactChunk);
                     }
-                });
+                }
+
+                @Override
+                public void onRegionFileCompleted(File regionFile) {
+                    ambiguousChunks.onRegionCompleted(getRegionKey(regionFile));
+                }
             });
+        } finally {
+            // Nothing may change the cache anymore once the analysis is over
+            secondPassThreads.awaitQuiescence(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        final Throwable failure = secondPassFailure.get();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
         }
+        VP.info(
+                "Dimension " + dimensionId
+                        + ": "
+                        + ambiguousChunks.getNumberOfChunks()
+                        + " chunks needed a second identification pass, at most "
+                        + ambiguousChunks.getMaxWaitingChunks()
+                        + " of them waited for their neighbors at once");
+        return ambiguousChunks;
+    }
+
+    // Called on a thread of the second pass once the neighbors of the chunk are classified
+    private void processAmbiguousChunk(AmbiguousChunk ambiguousChunk, ConcurrentLongIntHashMap veinBlockY) {
+        budget.awaitServerHeadroom(isCancelled);
+        if (isCancelled.getAsBoolean()) {
+            return;
+        }
+        final long startNS = System.nanoTime();
+        final DetailedChunkAnalysis chunk = DetailedChunkAnalysis
+                .fromBytes(dimensionId, ByteBuffer.wrap(ambiguousChunk.compactChunk));
+        chunk.cleanUpWithNeighbors(veinBlockY, cache);
+        cache.notifyOreVeinGeneration(dimensionId, chunk.chunkX, chunk.chunkZ, chunk.getMatchedVein());
+        statistics.onSecondPassChunk(System.nanoTime() - startNS);
     }
 
     /**
@@ -117,149 +262,56 @@ public class DimensionAnalysis {
      */
     public void processMinecraftWorldSection(MinecraftWorld world, int startX, int startZ, int endX, int endZ)
             throws IOException, DataFormatException {
+        processRegionFiles(world.getSomeRegionFiles(dimensionId, startX, startZ, endX, endZ));
+    }
 
-        // dunno what this is for
-        final Map<Long, Integer> veinBlockY = new ConcurrentHashMap<>();
-
-        // get the region files, and get their size
-        final List<File> regionFiles = world.getSomeRegionFiles(dimensionId, startX, startZ, endX, endZ);
-        final long dimensionSizeMB = regionFiles.stream().mapToLong(File::length).sum() >> 20;
-
-        // If we can do it quick...
-        if (dimensionSizeMB <= Config.maxDimensionSizeMBForFastScanning) {
-            // dew it
-
-            // update the progress tracker
-            AnalysisProgressTracker.announceFastDimension(dimensionId);
-            AnalysisProgressTracker.setNumberOfRegionFiles(regionFiles.size());
-
-            // init!
-            final Map<Long, DetailedChunkAnalysis> chunksForSecondIdentificationPass = new ConcurrentHashMap<>();
-
-            // Process the files with multiple threads! For each one...
-            regionFiles.parallelStream().forEach(regionFile -> {
-
-                // And for each ore chunk that has actually been generated...
-                executeForEachGeneratedOreChunk(regionFile, (root, chunkX, chunkZ) -> {
-
-                    // Analyze it
-                    final ChunkAnalysis chunk = new ChunkAnalysis();
-                    chunk.processMinecraftChunk(root);
-
-                    if (chunk.matchesSingleVein()) { // if it matches one vein, or none...
-
-                        // Update the server cache
-                        ServerCache.instance
-                                .notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, chunk.getMatchedVein());
-                        veinBlockY.put(Utils.chunkCoordsToKey(chunkX, chunkZ), chunk.getVeinBlockY());
-                    } else { // if it matches multiple, somehow...
-
-                        // Process it further, and send it for a second pass.
-                        final DetailedChunkAnalysis detailedChunk = new DetailedChunkAnalysis(
-                                dimensionId,
-                                chunkX,
-                                chunkZ);
-                        detailedChunk.processMinecraftChunk(root);
-                        chunksForSecondIdentificationPass.put(Utils.chunkCoordsToKey(chunkX, chunkZ), detailedChunk);
-                    }
-                });
-            });
-
-            // In parallel, again!
-            chunksForSecondIdentificationPass.values().parallelStream().forEach(chunk -> {
-
-                // Clean up the chunks. This probably fixes neighboring veins on different y-levels screwing with it
-                chunk.cleanUpWithNeighbors(veinBlockY);
-                ServerCache.instance
-                        .notifyOreVeinGeneration(dimensionId, chunk.chunkX, chunk.chunkZ, chunk.getMatchedVein());
-            });
-        } else {
-
-            // do it slow ig
-            // Announce, so the user doesn't get ansty
-            AnalysisProgressTracker.announceSlowDimension(dimensionId);
-            AnalysisProgressTracker.setNumberOfRegionFiles(regionFiles.size() * 2);
-
-            // Same as above.
-            regionFiles.parallelStream().forEach(regionFile -> {
-
-                // Ditto.
-                executeForEachGeneratedOreChunk(regionFile, (root, chunkX, chunkZ) -> {
-
-                    // This is getting boring.
-                    final ChunkAnalysis chunk = new ChunkAnalysis();
-                    chunk.processMinecraftChunk(root);
-
-                    // Wots this?
-                    if (chunk.matchesSingleVein()) {
-
-                        // Update server
-                        ServerCache.instance
-                                .notifyOreVeinGeneration(dimensionId, chunkX, chunkZ, chunk.getMatchedVein());
-                        veinBlockY.put(Utils.chunkCoordsToKey(chunkX, chunkZ), chunk.getVeinBlockY());
-                    }
-                });
-            });
-
-            // Instead of marking some files for a second pass,
-            // this one is slower because it does ALL of them twice
-            // Probably due to memory problems on bigger worlds.
-            // Otherwise I'm pretty sure it's identical to the fast pass.
-            regionFiles.parallelStream().forEach(regionFile -> {
-
-                executeForEachGeneratedOreChunk(regionFile, (root, chunkX, chunkZ) -> {
+    // Removes all cached veins of the given regions, so a new analysis does not leave any outdated veins behind
+    public void clearRegions(Collection<String> regionFileNames) {
+        for (long regionKey : getRegionKeys(regionFileNames)) {
+            final int regionChunkX = Utils.keyToChunkX(regionKey) << 5;
+            final int regionChunkZ = Utils.keyToChunkZ(regionKey) << 5;
+            cache.resetSome(
+                    dimensionId,
+                    regionChunkX,
+                    regionChunkZ,
+                    regionChunkX + VP.chunksPerRegionFileX - 1,
+                    regionChunkZ + VP.chunksPerRegionFileZ - 1);
+        }
+    }
 
-                    if (ServerCache.instance.getOreVein(dimensionId, chunkX, chunkZ).veinType == VeinType.NO_VEIN) {
+    // Invalid region file names are skipped by the scan, their key sorts last and is never next to a chunk
+    private static long getRegionKey(File regionFile) {
+        final Matcher matcher = REGION_FILE_NAME_PATTERN.matcher(regionFile.getName());
+        return matcher.matches()
+                ? Utils.chunkCoordsToKey(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)))
+                : Utils.chunkCoordsToKey(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
 
-                        final DetailedChunkAnalysis detailedChunk = new DetailedChunkAnalysis(
-                                dimensionId,
-                                chunkX,
-                                chunkZ);
-                        detailedChunk.processMinecraftChunk(root);
-                        detailedChunk.cleanUpWithNeighbors(veinBlockY);
-                        ServerCache.instance.notifyOreVeinGeneration(
-                                dimensionId,
-                                detailedChunk.chunkX,
-                                detailedChunk.chunkZ,
-                                detailedChunk.getMatchedVein());
-                    }
-                });
-            });
+    // Region coordinates packed like chunk coordinates. Names that are no region file names are left out
+    public static Set<Long> getRegionKeys(Collection<String> regionFileNames) {
+        final Set<Long> regionKeys = new HashSet<>();
+        for (String regionFileName : regionFileNames) {
+            final Matcher matcher = REGION_FILE_NAME_PATTERN.matcher(regionFileName);
+            if (matcher.matches()) {
+                regionKeys.add(
+                        Utils.chunkCoordsToKey(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+            }
         }
+        return regionKeys;
     }
 
-    private void executeForEachGeneratedOreChunk(File regionFile, IChunkHandler chunkHandler) {
-        try {
-            if (!Pattern.matches("^r\\.-?\\d+\\.-?\\d+\\.mca$", regionFile.getName())) {
-                VP.warn("Invalid region file found! " + regionFile.getCanonicalPath() + " continuing");
-                return;
-            }
-            final String[] parts = regionFile.getName().split("\\.");
-            final int regionChunkX = Integer.parseInt(parts[1]) << 5;
-            final int regionChunkZ = Integer.parseInt(parts[2]) << 5;
-            final MinecraftRegion region = new MinecraftRegion(regionFile);
-            for (int localChunkX = 0; localChunkX < VP.chunksPerRegionFileX; localChunkX++) {
-                for (int localChunkZ = 0; localChunkZ < VP.chunksPerRegionFileZ; localChunkZ++) {
-                    final int chunkX = regionChunkX + localChunkX;
-                    final int chunkZ = regionChunkZ + localChunkZ;
+    // Region files that could not be read. Their veins are incomplete
+    public Set<File> getCorruptRegionFiles() {
+        return corruptRegionFiles;
+    }
 
-                    // Only process ore chunks
-                    if (chunkX == Utils.mapToCenterOreChunkCoord(chunkX)
-                            && chunkZ == Utils.mapToCenterOreChunkCoord(chunkZ)) {
-                        // Helpful read about 'root' structure: https://minecraft.fandom.com/wiki/Chunk_format
-                        final NBTCompound root = region.getChunk(localChunkX, localChunkZ).getRootTag();
+    // Hash of the ore chunks of every region file that was read completely, see ChunkScanPipeline.hashOreChunks()
+    public Map<File, Long> getOreChunkHashes() {
+        return oreChunkHashes;
+    }
 
-                        // root == null occurs when a chunk is not yet generated
-                        if (root != null) {
-                            chunkHandler.processChunk(root, chunkX, chunkZ);
-                        }
-                    }
-                }
-            }
-            region.close();
-            AnalysisProgressTracker.regionFileProcessed();
-        } catch (DataFormatException | IOException e) {
-            AnalysisProgressTracker.notifyCorruptFile(regionFile);
-        }
+    private void scanOreChunks(List<File> regionFiles, ChunkScanPipeline.IChunkHandler chunkHandler) {
+        new ChunkScanPipeline(corruptRegionFiles, oreChunkHashes, budget, isCancelled, statistics)
+                .scan(regionFiles, chunkHandler);
     }
 }
@@ -0,0 +1,169 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and timing of the analysis of one dimension. The stage times are summed over all threads, so they show
+ * where the threads spend their time rather than how long the analysis took. Counters are updated by many threads at
+ * once without locking.
+ */
+public class DimensionAnalysisStatistics {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    public final int dimensionId;
+    public final int numberOfRegionFiles;
+    private final long startNS = System.nanoTime();
+    private volatile long endNS = 0;
+
+    private final LongAdder regionFilesProcessed = new LongAdder();
+    private final LongAdder corruptRegionFiles = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder readNS = new LongAdder();
+    private final LongAdder inflateNS = new LongAdder();
+    private final LongAdder parseNS = new LongAdder();
+    private final LongAdder matchNS = new LongAdder();
+    private final LongAdder firstPassHits = new LongAdder();
+    private final LongAdder secondPassChunks = new LongAdder();
+    private final LongAdder secondPassNS = new LongAdder();
+
+    public DimensionAnalysisStatistics(int dimensionId, int numberOfRegionFiles) {
+        this.dimensionId = dimensionId;
+        this.numberOfRegionFiles = numberOfRegionFiles;
+    }
+
+    public void onChunkRead(int compressedLength, long durationNS) {
+        chunks.increment();
+        compressedBytes.add(compressedLength);
+        readNS.add(durationNS);
+    }
+
+    public void onChunkInflated(long durationNS) {
+        inflateNS.add(durationNS);
+    }
+
+    public void onChunkParsed(long durationNS) {
+        parseNS.add(durationNS);
+    }
+
+    public void onChunkMatched(long durationNS) {
+        matchNS.add(durationNS);
+    }
+
+    public void onFirstPassHit() {
+        firstPassHits.increment();
+    }
+
+    public void onSecondPassChunk(long durationNS) {
+        secondPassChunks.increment();
+        secondPassNS.add(durationNS);
+    }
+
+    public void onRegionFileProcessed() {
+        regionFilesProcessed.increment();
+    }
+
+    public void onCorruptRegionFile() {
+        corruptRegionFiles.increment();
+    }
+
+    public void finish() {
+        if (endNS == 0) {
+            endNS = System.nanoTime();
+        }
+    }
+
+    public double getElapsedSeconds() {
+        final long end = endNS != 0 ? endNS : System.nanoTime();
+        return (end - startNS) / NANOS_PER_SECOND;
+    }
+
+    public long getChunks() {
+        return chunks.sum();
+    }
+
+    public double getCompressedMB() {
+        return compressedBytes.sum() / BYTES_PER_MB;
+    }
+
+    public int getRegionFilesProcessed() {
+        return regionFilesProcessed.intValue();
+    }
+
+    public int getRegionFilesPercentage() {
+        return numberOfRegionFiles == 0 ? 0 : (getRegionFilesProcessed() * 100) / numberOfRegionFiles;
+    }
+
+    public double getChunksPerSecond() {
+        final double elapsedSeconds = getElapsedSeconds();
+        return elapsedSeconds <= 0 ? 0 : getChunks() / elapsedSeconds;
+    }
+
+    // Of compressed chunk data, as it is read from disk
+    public double getMBPerSecond() {
+        final double elapsedSeconds = getElapsedSeconds();
+        return elapsedSeconds <= 0 ? 0 : getCompressedMB() / elapsedSeconds;
+    }
+
+    // Extrapolated from the region files processed so far or -1 if there are none yet
+    public long getEtaSeconds() {
+        if (endNS != 0) {
+            return 0;
+        }
+        final int processed = getRegionFilesProcessed();
+        if (processed == 0) {
+            return -1;
+        }
+        return Math.round(getElapsedSeconds() * (numberOfRegionFiles - processed) / processed);
+    }
+
+    // The region file progress and rates, short enough for a chat message
+    public String getProgressSummary() {
+        final long etaSeconds = getEtaSeconds();
+        return String.format(
+                Locale.ROOT,
+                "%d/%d region files, %.0f chunks/s, %.1f MB/s, ETA %s",
+                getRegionFilesProcessed(),
+                numberOfRegionFiles,
+                getChunksPerSecond(),
+                getMBPerSecond(),
+                etaSeconds < 0 ? "unknown" : etaSeconds + "s");
+    }
+
+    public String getTimingSummary() {
+        return String.format(
+                Locale.ROOT,
+                "read %.1fs, inflate %.1fs, parse %.1fs, match %.1fs, second pass %.1fs",
+                readNS.sum() / NANOS_PER_SECOND,
+                inflateNS.sum() / NANOS_PER_SECOND,
+                parseNS.sum() / NANOS_PER_SECOND,
+                matchNS.sum() / NANOS_PER_SECOND,
+                secondPassNS.sum() / NANOS_PER_SECOND);
+    }
+
+    public String getCountSummary() {
+        return String.format(
+                Locale.ROOT,
+                "%d chunks, %d first pass hits, %d second pass chunks, %d corrupt region files",
+                chunks.sum(),
+                firstPassHits.sum(),
+                secondPassChunks.sum(),
+                corruptRegionFiles.sum());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ROOT,
+                "Dimension %d: %.1fs, %s; %s; %s",
+                dimensionId,
+                getElapsedSeconds(),
+                getProgressSummary(),
+                getCountSummary(),
+                getTimingSummary());
+    }
+}
@@ -0,0 +1,229 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import static com.sinthoras.visualprospecting.Utils.isSmallOreId;
+import static com.sinthoras.visualprospecting.Utils.oreIdToMaterialId;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+import com.sinthoras.visualprospecting.VP;
+
+/**
+ * Reads the GregTech ores of a chunk straight from its uncompressed NBT, without building a tag tree. Only the tile
+ * entities in Level.TileEntities are looked at, everything else is skipped by its length. Helpful read about the
+ * structure: https://minecraft.fandom.com/wiki/Chunk_format
+ */
+public class GregTechOreExtractor {
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_BYTE = 1;
+    private static final byte TAG_SHORT = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_BYTE_ARRAY = 7;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+    private static final byte TAG_INT_ARRAY = 11;
+    private static final byte TAG_LONG_ARRAY = 12;
+
+    private static final byte[] LEVEL = "Level".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TILE_ENTITIES = "TileEntities".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TILE_ENTITY_ID = "id".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ORE_META_DATA = "m".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ORE_BLOCK_Y = "y".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GT_ORE_TILE_ENTITY_ID = "GT_TileEntity_Ores".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Adds all GregTech ores of a chunk to the buffer. Small ores are left out.
+     *
+     * @param chunk Uncompressed NBT of the chunk, consumed by this call
+     * @throws DataFormatException If the NBT is malformed
+     */
+    public static void extract(ByteBuffer chunk, GregTechOres ores) throws DataFormatException {
+        try {
+            if (chunk.get() != TAG_COMPOUND) {
+                throw new DataFormatException("Chunk does not start with a compound tag");
+            }
+            skipName(chunk);
+            // Root compound -> Level compound -> TileEntities list
+            if (findTag(chunk, TAG_COMPOUND, LEVEL) && findTag(chunk, TAG_LIST, TILE_ENTITIES)) {
+                readTileEntities(chunk, ores);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new DataFormatException("Malformed chunk NBT: " + e);
+        }
+    }
+
+    // Skips tags of the current compound until the searched one. Returns with the position at its payload
+    private static boolean findTag(ByteBuffer chunk, byte searchedType, byte[] searchedName) {
+        byte type;
+        while ((type = chunk.get()) != TAG_END) {
+            if (readNameEquals(chunk, searchedName) && type == searchedType) {
+                return true;
+            }
+            skipPayload(chunk, type);
+        }
+        return false;
+    }
+
+    private static void readTileEntities(ByteBuffer chunk, GregTechOres ores) {
+        final byte elementType = chunk.get();
+        final int numberOfElements = chunk.getInt();
+        if (elementType != TAG_COMPOUND) {
+            // Empty lists have no element type
+            skipListElements(chunk, elementType, numberOfElements);
+            return;
+        }
+        for (int element = 0; element < numberOfElements; element++) {
+            readTileEntity(chunk, ores);
+        }
+    }
+
+    private static void readTileEntity(ByteBuffer chunk, GregTechOres ores) {
+        boolean isGTOre = false;
+        boolean hasMetaData = false;
+        boolean hasBlockY = false;
+        short metaData = 0;
+        int blockY = 0;
+
+        byte type;
+        while ((type = chunk.get()) != TAG_END) {
+            final int nameLength = chunk.getShort() & 0xFFFF;
+            final int namePosition = chunk.position();
+            skip(chunk, nameLength);
+
+            if (type == TAG_STRING && nameEquals(chunk, namePosition, nameLength, TILE_ENTITY_ID)) {
+                final int idLength = chunk.getShort() & 0xFFFF;
+                isGTOre = nameEquals(chunk, chunk.position(), idLength, GT_ORE_TILE_ENTITY_ID);
+                skip(chunk, idLength);
+            } else if (type == TAG_SHORT && nameEquals(chunk, namePosition, nameLength, ORE_META_DATA)) {
+                metaData = chunk.getShort();
+                hasMetaData = true;
+            } else if (type == TAG_INT && nameEquals(chunk, namePosition, nameLength, ORE_BLOCK_Y)) {
+                blockY = chunk.getInt();
+                hasBlockY = true;
+            } else {
+                skipPayload(chunk, type);
+            }
+        }
+
+        if (isGTOre && hasMetaData
+                && hasBlockY
+                && isSmallOreId(metaData) == false
+                && blockY >= 0
+                && blockY < VP.minecraftWorldHeight) {
+            ores.add(oreIdToMaterialId(metaData), blockY);
+        }
+    }
+
+    private static boolean readNameEquals(ByteBuffer chunk, byte[] name) {
+        final int nameLength = chunk.getShort() & 0xFFFF;
+        final boolean equals = nameEquals(chunk, chunk.position(), nameLength, name);
+        skip(chunk, nameLength);
+        return equals;
+    }
+
+    private static boolean nameEquals(ByteBuffer chunk, int position, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int index = 0; index < length; index++) {
+            if (chunk.get(position + index) != name[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipName(ByteBuffer chunk) {
+        skip(chunk, chunk.getShort() & 0xFFFF);
+    }
+
+    private static void skipPayload(ByteBuffer chunk, byte type) {
+        switch (type) {
+            case TAG_BYTE:
+                skip(chunk, Byte.BYTES);
+                break;
+            case TAG_SHORT:
+                skip(chunk, Short.BYTES);
+                break;
+            case TAG_INT:
+            case TAG_FLOAT:
+                skip(chunk, Integer.BYTES);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                skip(chunk, Long.BYTES);
+                break;
+            case TAG_BYTE_ARRAY:
+                skip(chunk, chunk.getInt());
+                break;
+            case TAG_STRING:
+                skip(chunk, chunk.getShort() & 0xFFFF);
+                break;
+            case TAG_LIST:
+                final byte elementType = chunk.get();
+                skipListElements(chunk, elementType, chunk.getInt());
+                break;
+            case TAG_COMPOUND:
+                byte memberType;
+                while ((memberType = chunk.get()) != TAG_END) {
+                    skipName(chunk);
+                    skipPayload(chunk, memberType);
+                }
+                break;
+            case TAG_INT_ARRAY:
+                skip(chunk, (long) chunk.getInt() * Integer.BYTES);
+                break;
+            case TAG_LONG_ARRAY:
+                skip(chunk, (long) chunk.getInt() * Long.BYTES);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tag type " + type);
+        }
+    }
+
+    private static void skipListElements(ByteBuffer chunk, byte elementType, int numberOfElements) {
+        if (numberOfElements <= 0) {
+            return;
+        }
+        final int elementBytes = getFixedPayloadBytes(elementType);
+        if (elementBytes > 0) {
+            skip(chunk, (long) numberOfElements * elementBytes);
+        } else {
+            for (int element = 0; element < numberOfElements; element++) {
+                skipPayload(chunk, elementType);
+            }
+        }
+    }
+
+    // Returns 0 for tags of variable length
+    private static int getFixedPayloadBytes(byte type) {
+        switch (type) {
+            case TAG_BYTE:
+                return Byte.BYTES;
+            case TAG_SHORT:
+                return Short.BYTES;
+            case TAG_INT:
+            case TAG_FLOAT:
+                return Integer.BYTES;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                return Long.BYTES;
+            default:
+                return 0;
+        }
+    }
+
+    private static void skip(ByteBuffer chunk, long bytes) {
+        if (bytes < 0 || bytes > chunk.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        chunk.position(chunk.position() + (int) bytes);
+    }
+}
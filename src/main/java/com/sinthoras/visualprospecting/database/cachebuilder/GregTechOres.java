@@ -0,0 +1,40 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.util.Arrays;
+
+// The GregTech ore blocks of a chunk in primitive arrays, so scanning does not create an object per ore block. Meant to
+// be reused for every chunk of a region file
+public class GregTechOres {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private short[] metaData = new short[INITIAL_CAPACITY];
+    private int[] blockY = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(short oreMetaData, int oreBlockY) {
+        if (size == metaData.length) {
+            metaData = Arrays.copyOf(metaData, size * 2);
+            blockY = Arrays.copyOf(blockY, size * 2);
+        }
+        metaData[size] = oreMetaData;
+        blockY[size] = oreBlockY;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public short getMetaData(int index) {
+        return metaData[index];
+    }
+
+    public int getBlockY(int index) {
+        return blockY[index];
+    }
+}
@@ -0,0 +1,194 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import com.sinthoras.visualprospecting.VP;
+
+/**
+ * Reads single chunks from a region file (.mca). Only the 8 KiB header is read up front, so chunks that were never
+ * generated are skipped without touching the file. Requested chunks are fetched with one positional read of their
+ * sectors, which also allows several threads to read from the same region file. Reading and decompressing are separate
+ * steps, so they can run on different threads.
+ */
+public class RegionFileReader implements Closeable {
+
+    private static final int SECTOR_BYTES = 4096;
+    private static final int CHUNKS_PER_REGION = VP.chunksPerRegionFileX * VP.chunksPerRegionFileZ;
+    // Chunk locations followed by the chunk timestamps
+    private static final int HEADER_BYTES = 2 * CHUNKS_PER_REGION * Integer.BYTES;
+    private static final int CHUNK_HEADER_BYTES = Integer.BYTES + Byte.BYTES;
+    private static final byte COMPRESSION_GZIP = 1;
+    private static final byte COMPRESSION_ZLIB = 2;
+
+    // Reading and decompressing reuse these per thread instead of allocating them for every chunk
+    private static class ChunkBuffers {
+
+        private final Inflater inflater = new Inflater();
+        private ByteBuffer sectors = ByteBuffer.allocate(4 * SECTOR_BYTES);
+        private byte[] chunk = new byte[64 * 1024];
+    }
+
+    private static final ThreadLocal<ChunkBuffers> chunkBuffers = ThreadLocal.withInitial(ChunkBuffers::new);
+
+    private final File regionFile;
+    private final FileChannel channel;
+    // Per chunk: the first sector in the upper three bytes, the number of sectors in the lowest byte
+    private final int[] locations = new int[CHUNKS_PER_REGION];
+
+    public RegionFileReader(File regionFile) throws IOException {
+        this.regionFile = regionFile;
+        channel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ);
+        try {
+            // Minecraft treats files without a complete header as empty
+            if (channel.size() >= HEADER_BYTES) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(header, 0);
+                header.flip();
+                header.asIntBuffer().get(locations, 0, CHUNKS_PER_REGION);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // The still compressed payload of a chunk, so it can be decompressed on another thread
+    public static class CompressedChunk {
+
+        private final byte compression;
+        private final byte[] data;
+
+        private CompressedChunk(byte compression, byte[] data) {
+            this.compression = compression;
+            this.data = data;
+        }
+
+        public int getCompressedLength() {
+            return data.length;
+        }
+
+        // Adds the compression and the compressed payload
+        public void updateChecksum(Checksum checksum) {
+            checksum.update(compression);
+            checksum.update(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Only reads the chunk, decompressing is left to {@link #decompress(CompressedChunk)}.
+     *
+     * @return The compressed chunk or null if the chunk was not generated yet
+     */
+    public CompressedChunk readCompressedChunk(int localChunkX, int localChunkZ)
+            throws IOException, DataFormatException {
+        final int location = getLocation(localChunkX, localChunkZ);
+        if (location == 0) {
+            return null;
+        }
+        final long sectorsOffset = (long) (location >>> 8) * SECTOR_BYTES;
+        final int sectorsLength = (location & 0xFF) * SECTOR_BYTES;
+        if (sectorsLength < CHUNK_HEADER_BYTES || sectorsOffset + CHUNK_HEADER_BYTES > channel.size()) {
+            throw new DataFormatException(
+                    "Chunk " + localChunkX + "," + localChunkZ + " lies outside of " + regionFile);
+        }
+
+        final ChunkBuffers buffers = chunkBuffers.get();
+        if (buffers.sectors.capacity() < sectorsLength) {
+            buffers.sectors = ByteBuffer.allocate(sectorsLength);
+        }
+        final ByteBuffer sectors = buffers.sectors;
+        sectors.clear();
+        // The last chunk of a file is not always padded to full sectors
+        sectors.limit((int) Math.min(sectorsLength, channel.size() - sectorsOffset));
+        readFully(sectors, sectorsOffset);
+        sectors.flip();
+
+        final int length = sectors.getInt();
+        if (length <= 1 || length - 1 > sectors.remaining()) {
+            throw new DataFormatException("Invalid length " + length + " of chunk " + localChunkX + "," + localChunkZ);
+        }
+        final byte compression = sectors.get();
+        final byte[] data = new byte[length - 1];
+        sectors.get(data);
+        return new CompressedChunk(compression, data);
+    }
+
+    /**
+     * The returned buffer is reused by the next call on the same thread, so it must be consumed before.
+     *
+     * @return The uncompressed NBT of the chunk
+     */
+    public static ByteBuffer decompress(CompressedChunk chunk) throws IOException, DataFormatException {
+        switch (chunk.compression) {
+            case COMPRESSION_ZLIB:
+                return inflate(chunkBuffers.get(), chunk.data);
+            case COMPRESSION_GZIP:
+                return readFully(new GZIPInputStream(new ByteArrayInputStream(chunk.data)));
+            default:
+                throw new DataFormatException("Unknown compression " + chunk.compression);
+        }
+    }
+
+    private int getLocation(int localChunkX, int localChunkZ) {
+        return locations[localChunkX + localChunkZ * VP.chunksPerRegionFileX];
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + regionFile);
+            }
+        }
+    }
+
+    private static ByteBuffer inflate(ChunkBuffers buffers, byte[] compressedChunk) throws DataFormatException {
+        final Inflater inflater = buffers.inflater;
+        inflater.reset();
+        inflater.setInput(compressedChunk);
+        int inflatedLength = 0;
+        while (inflater.finished() == false) {
+            if (inflatedLength == buffers.chunk.length) {
+                final byte[] chunk = new byte[buffers.chunk.length * 2];
+                System.arraycopy(buffers.chunk, 0, chunk, 0, inflatedLength);
+                buffers.chunk = chunk;
+            }
+            final int inflatedBytes = inflater
+                    .inflate(buffers.chunk, inflatedLength, buffers.chunk.length - inflatedLength);
+            if (inflatedBytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Compressed chunk ended after " + inflatedLength + " bytes");
+            }
+            inflatedLength += inflatedBytes;
+        }
+        return ByteBuffer.wrap(buffers.chunk, 0, inflatedLength);
+    }
+
+    // Minecraft 1.7.10 only writes zlib, so gzip chunks do not get reused buffers
+    private static ByteBuffer readFully(InputStream inputStream) throws IOException {
+        try (final InputStream stream = inputStream) {
+            final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int readBytes;
+            while ((readBytes = stream.read(buffer)) >= 0) {
+                chunk.write(buffer, 0, readBytes);
+            }
+            return ByteBuffer.wrap(chunk.toByteArray());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
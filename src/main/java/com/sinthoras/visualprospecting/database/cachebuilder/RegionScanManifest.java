@@ -0,0 +1,180 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.sinthoras.visualprospecting.Utils;
+import com.sinthoras.visualprospecting.VP;
+
+/**
+ * Remembers the size, modification time and the hash of the ore chunks of every region file at the time it was
+ * analyzed. A region file only needs to be analyzed again if it changed since. A file of another size always counts as
+ * changed. Only if the size matches, but the modification time does not, its ore chunks are hashed. That way, region
+ * files that were merely touched or copied are not analyzed again. The hash of an analyzed file is taken from the
+ * chunks its scan reads, so changed files are never read twice.
+ */
+public class RegionScanManifest {
+
+    private static class RegionState {
+
+        // No region file has this size, so a stale region always counts as changed
+        private static final long STALE_SIZE = -1;
+
+        private long size;
+        private long lastModified;
+        private long hash;
+
+        private RegionState(long size, long lastModified, long hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final File file;
+    // Region file name by dimension id
+    private final Map<Integer, Map<String, RegionState>> dimensions = new ConcurrentHashMap<>();
+    // State of changed region files before they were analyzed. The server might write to them during the analysis,
+    // in which case they must count as changed next time
+    private final Map<File, RegionState> pendingStates = new ConcurrentHashMap<>();
+
+    private RegionScanManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Manifest that overwrites the given file once saved and for which every region file counts as changed. The regions
+     * listed in the file are kept as stale, so the veins of a region file that was removed are still dropped, even if
+     * the analysis is interrupted and resumed from the saved manifest.
+     */
+    public static RegionScanManifest create(File file) {
+        final RegionScanManifest manifest = load(file);
+        for (Map<String, RegionState> regions : manifest.dimensions.values()) {
+            for (RegionState state : regions.values()) {
+                state.size = RegionState.STALE_SIZE;
+            }
+        }
+        return manifest;
+    }
+
+    public static RegionScanManifest load(File file) {
+        final RegionScanManifest manifest = new RegionScanManifest(file);
+        if (file.exists() == false) {
+            return manifest;
+        }
+        try (final Reader reader = Files.newBufferedReader(file.toPath())) {
+            final Map<Integer, Map<String, RegionState>> dimensions = new Gson()
+                    .fromJson(reader, new TypeToken<Map<Integer, Map<String, RegionState>>>() {}.getType());
+            if (dimensions != null) {
+                dimensions.forEach(
+                        (dimensionId, regions) -> manifest.dimensions
+                                .put(dimensionId, new ConcurrentHashMap<>(regions)));
+            }
+        } catch (IOException | JsonParseException e) {
+            // Without a manifest, everything is analyzed again
+            VP.warn("Could not read region manifest " + file);
+            e.printStackTrace();
+        }
+        return manifest;
+    }
+
+    public void save() {
+        try {
+            final String json = new Gson()
+                    .toJson(dimensions, new TypeToken<Map<Integer, Map<String, RegionState>>>() {}.getType());
+            Utils.writeFileAtomically(file, ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            VP.warn("Could not save region manifest " + file);
+            e.printStackTrace();
+        }
+    }
+
+    public Set<Integer> getDimensionIds() {
+        return new HashSet<>(dimensions.keySet());
+    }
+
+    /**
+     * @param budget Limits how fast region files are read if they need to be hashed
+     */
+    public boolean isUnchanged(int dimensionId, File regionFile, ScanBudget budget) {
+        final RegionState state = getRegions(dimensionId).get(regionFile.getName());
+        final long size = regionFile.length();
+        final long lastModified = regionFile.lastModified();
+        if (state == null || state.size != size) {
+            // The hash is filled in once the file is analyzed
+            pendingStates.put(regionFile, new RegionState(size, lastModified, 0));
+            return false;
+        }
+        if (state.lastModified == lastModified) {
+            return true;
+        }
+        if (state.hash == computeHash(regionFile, budget)) {
+            // Only touched, remember the new time to skip hashing next time
+            state.lastModified = lastModified;
+            return true;
+        }
+        pendingStates.put(regionFile, new RegionState(size, lastModified, 0));
+        return false;
+    }
+
+    // Names of region files that were analyzed before, but do no longer exist
+    public List<String> getRemovedRegions(int dimensionId, Collection<File> regionFiles) {
+        final Set<String> existingRegions = new HashSet<>();
+        for (File regionFile : regionFiles) {
+            existingRegions.add(regionFile.getName());
+        }
+        final List<String> removedRegions = new ArrayList<>();
+        for (String regionName : getRegions(dimensionId).keySet()) {
+            if (existingRegions.contains(regionName) == false) {
+                removedRegions.add(regionName);
+            }
+        }
+        return removedRegions;
+    }
+
+    /**
+     * Must only be called for region files that isUnchanged() reported as changed.
+     *
+     * @param oreChunkHash Computed from the chunks the scan read, see
+     *                     {@link ChunkScanPipeline#hashOreChunks(File, ScanBudget)}
+     */
+    public void markAnalyzed(int dimensionId, File regionFile, long oreChunkHash) {
+        final RegionState state = pendingStates.remove(regionFile);
+        if (state != null) {
+            state.hash = oreChunkHash;
+            getRegions(dimensionId).put(regionFile.getName(), state);
+        }
+    }
+
+    public void markRemoved(int dimensionId, String regionName) {
+        getRegions(dimensionId).remove(regionName);
+    }
+
+    private Map<String, RegionState> getRegions(int dimensionId) {
+        return dimensions.computeIfAbsent(dimensionId, id -> new ConcurrentHashMap<>());
+    }
+
+    private static long computeHash(File regionFile, ScanBudget budget) {
+        try {
+            return ChunkScanPipeline.hashOreChunks(regionFile, budget);
+        } catch (IOException | DataFormatException e) {
+            // Never matches a stored hash, so the file is analyzed again
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import net.minecraft.server.MinecraftServer;
+
+import com.sinthoras.visualprospecting.Config;
+
+/**
+ * Limits what a world scan may take from a running server: the number of analyzing threads, the bytes read from region
+ * files per second and, optionally, pauses while the server ticks slower than a threshold. A value of 0 lifts the
+ * respective limit.
+ */
+public class ScanBudget {
+
+    public static final ScanBudget UNLIMITED = new ScanBudget(0, 0, 0);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long BACKOFF_POLL_MS = 250;
+
+    private final int workerThreads;
+    private final long readBytesPerSecond;
+    private final int maxServerTickMS;
+    // Reads are paced like a token bucket: this is the time at which all bytes read so far are paid for
+    private long readsPaidUntilNS = System.nanoTime();
+
+    public ScanBudget(int maxWorkerThreads, int maxReadMBPerSecond, int maxServerTickMS) {
+        // Leave one core for the server thread
+        workerThreads = maxWorkerThreads > 0 ? maxWorkerThreads
+                : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        readBytesPerSecond = Math.max(0, maxReadMBPerSecond) * 1024L * 1024L;
+        this.maxServerTickMS = Math.max(0, maxServerTickMS);
+    }
+
+    // The budget for scans while the server is running
+    public static ScanBudget fromConfig() {
+        return new ScanBudget(
+                Config.backgroundScanMaxThreads,
+                Config.backgroundScanMaxReadMBPerSecond,
+                Config.backgroundScanMaxServerTickMS);
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    // Blocks until reading the given number of bytes stays within the read rate
+    public void acquireReadBytes(long bytes) {
+        if (readBytesPerSecond <= 0) {
+            return;
+        }
+        final long waitNS;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            // Unused budget only carries over for one second, so reads after a pause do not burst
+            readsPaidUntilNS = Math.max(readsPaidUntilNS, now - NANOS_PER_SECOND);
+            readsPaidUntilNS += bytes * NANOS_PER_SECOND / readBytesPerSecond;
+            waitNS = readsPaidUntilNS - now;
+        }
+        if (waitNS > 0) {
+            sleep(TimeUnit.NANOSECONDS.toMillis(waitNS));
+        }
+    }
+
+    /**
+     * Blocks while the server ticks slower than the threshold, averaged over its last 100 ticks.
+     *
+     * @param isCancelled Stops waiting once it returns true
+     */
+    public void awaitServerHeadroom(BooleanSupplier isCancelled) {
+        if (maxServerTickMS <= 0) {
+            return;
+        }
+        while (getServerTickMS() > maxServerTickMS && isCancelled.getAsBoolean() == false) {
+            if (sleep(BACKOFF_POLL_MS) == false) {
+                return;
+            }
+        }
+    }
+
+    private static double getServerTickMS() {
+        final MinecraftServer server = MinecraftServer.getServer();
+        if (server == null || server.tickTimeArray == null || server.tickTimeArray.length == 0) {
+            return 0;
+        }
+        long tickTimeNS = 0;
+        for (long time : server.tickTimeArray) {
+            tickTimeNS += time;
+        }
+        return tickTimeNS / (double) server.tickTimeArray.length / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    // Returns false if interrupted. The interrupt is kept for the caller
+    private static boolean sleep(long milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.sinthoras.visualprospecting.database.cachebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.zip.DataFormatException;
+
+import com.sinthoras.visualprospecting.Tags;
+import com.sinthoras.visualprospecting.VP;
+import com.sinthoras.visualprospecting.database.ServerCache;
+
+/**
+ * Rebuilds the server cache on a background thread while the server keeps running. The veins are analyzed into a fresh
+ * {@link ServerCache} generation that only lives in memory, while the server cache keeps answering requests. At every
+ * checkpoint of the analysis, the regions analyzed so far are swapped into the server cache and stored. A cancelled or
+ * failed rebuild keeps the regions up to its last checkpoint and is resumed from there on the next start. Only one
+ * rebuild runs at a time and it stays within the {@link ScanBudget} from the config, so the server keeps ticking
+ * smoothly.
+ */
+public class ServerCacheRebuild {
+
+    public enum State {
+        Running,
+        Finished,
+        Failed,
+        Cancelled
+    }
+
+    private static ServerCacheRebuild latestRebuild;
+
+    private final Thread thread;
+    private final long startTimeMS = System.currentTimeMillis();
+    private volatile long endTimeMS = 0;
+    private volatile State state = State.Running;
+    private volatile boolean isCancelRequested = false;
+
+    private ServerCacheRebuild(File worldDirectory, boolean full) {
+        thread = new Thread(() -> run(worldDirectory, full), Tags.MODNAME + " cache rebuild");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @param full Whether all region files are analyzed again instead of only changed ones
+     * @return The started rebuild or null if another one is still running
+     */
+    public static synchronized ServerCacheRebuild start(File worldDirectory, boolean full) {
+        if (latestRebuild != null && latestRebuild.state == State.Running) {
+            return null;
+        }
+        latestRebuild = new ServerCacheRebuild(worldDirectory, full);
+        latestRebuild.thread.start();
+        return latestRebuild;
+    }
+
+    // Null if there was no rebuild since the game started
+    public static synchronized ServerCacheRebuild getLatest() {
+        return latestRebuild;
+    }
+
+    // Called when the server stops, so no rebuild swaps veins into the cache of a world that is unloaded
+    public static void cancelAndWait() {
+        final ServerCacheRebuild rebuild = getLatest();
+        if (rebuild != null && rebuild.cancel()) {
+            boolean interrupted = false;
+            while (rebuild.thread.isAlive()) {
+                try {
+                    rebuild.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Returns false if the rebuild is not running anymore. The analysis stops at the next region file or batch
+    public boolean cancel() {
+        if (state != State.Running) {
+            return false;
+        }
+        isCancelRequested = true;
+        return true;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getElapsedSeconds() {
+        final long endTime = state == State.Running ? System.currentTimeMillis() : endTimeMS;
+        return (endTime - startTimeMS) / 1000;
+    }
+
+    private void run(File worldDirectory, boolean full) {
+        final ServerCache generation = new ServerCache();
+        ServerCache.instance.setRebuildGeneration(generation);
+        State finalState = State.Failed;
+        try {
+            final WorldAnalysis world = new WorldAnalysis(
+                    worldDirectory,
+                    generation,
+                    ScanBudget.fromConfig(),
+                    () -> isCancelRequested);
+            if (full) {
+                world.cacheVeins();
+            } else {
+                world.cacheChangedVeins();
+            }
+            finalState = State.Finished;
+        } catch (CancellationException e) {
+            VP.info("Rebuilding the vein cache was cancelled");
+            finalState = State.Cancelled;
+        } catch (IOException | DataFormatException | RuntimeException e) {
+            VP.warn("Could not load world save files to build vein cache!");
+            e.printStackTrace();
+        } finally {
+            ServerCache.instance.setRebuildGeneration(null);
+            endTimeMS = System.currentTimeMillis();
+            state = finalState;
+        }
+    }
+}
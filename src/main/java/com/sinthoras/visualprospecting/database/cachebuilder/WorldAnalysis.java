@@ -2,8 +2,19 @@ package com.sinthoras.visualprospecting.database.cachebuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 
 import net.minecraft.util.ChunkCoordinates;
@@ -16,10 +27,33 @@ import io.xol.enklume.MinecraftWorld;
 
 public class WorldAnalysis {
 
+    // An analysis stores its progress in the server cache after this many region files, so it can be resumed
+    private static final int REGION_FILES_PER_CHECKPOINT = 256;
+
     private final MinecraftWorld world;
+    // Receives the analyzed veins. Any other cache than the server cache is swapped into it at every checkpoint
+    private final ServerCache cache;
+    private final ScanBudget budget;
+    private final BooleanSupplier isCancelled;
 
     public WorldAnalysis(File worldDirectory) throws IOException {
+        this(worldDirectory, ServerCache.instance, ScanBudget.UNLIMITED, () -> false);
+    }
+
+    /**
+     * @param cache       Receives the analyzed veins. If it is not the server cache, the server cache only changes
+     *                    when the regions analyzed so far are swapped in at a checkpoint
+     * @param budget      Limits what the analysis takes from a running server
+     * @param isCancelled Checked regularly. Once it returns true, the analysis stops with a
+     *                    {@link CancellationException} and nothing more is swapped in. It is resumed from the last
+     *                    checkpoint on the next start
+     */
+    public WorldAnalysis(File worldDirectory, ServerCache cache, ScanBudget budget, BooleanSupplier isCancelled)
+            throws IOException {
         world = new MinecraftWorld(worldDirectory);
+        this.cache = cache;
+        this.budget = budget;
+        this.isCancelled = isCancelled;
     }
 
     public void cacheOverworldSpawnVeins(ChunkCoordinates spawn) throws IOException, DataFormatException {
@@ -33,9 +67,168 @@ public class WorldAnalysis {
     public void cacheVeins() throws IOException, DataFormatException {
 
         VP.info("Starting to parse world save to cache GT vein locations. This might take some time...");
-        ServerCache.instance.reset();
+        if (cache == ServerCache.instance) {
+            ServerCache.instance.resetAndDiscardStoredCache();
+            cacheVeins(RegionScanManifest.load(ServerCache.instance.getRegionManifestFile()), false);
+        } else {
+            // The server cache keeps its veins until they are replaced region by region. The new manifest only counts
+            // the regions swapped in so far as unchanged, so an interrupted analysis resumes with all others and still
+            // drops the veins of removed regions
+            cacheVeins(RegionScanManifest.create(ServerCache.instance.getRegionManifestFile()), true);
+        }
+    }
+
+    /**
+     * Only analyzes region files that changed since they were cached and merges the result into the existing cache.
+     * Veins of removed region files are dropped. Without a region manifest, all region files count as changed. An
+     * interrupted analysis is resumed the same way, its manifest only lists the region files up to the last checkpoint.
+     */
+    public void cacheChangedVeins() throws IOException {
+
+        VP.info("Starting to parse changed parts of the world save to update cached GT vein locations...");
+        cacheVeins(RegionScanManifest.load(ServerCache.instance.getRegionManifestFile()), false);
+    }
+
+    /**
+     * @param replaceAll Whether all cached veins of a dimension are replaced once the analysis is done, instead of
+     *                   only the ones of analyzed and removed regions
+     */
+    private void cacheVeins(RegionScanManifest manifest, boolean replaceAll) throws IOException {
 
-        cacheVeins(world.getDimensionIds());
+        ServerCache.instance.setAnalysisInProgress(true);
+        final Set<Integer> dimensionIds = new HashSet<>(world.getDimensionIds());
+        dimensionIds.addAll(manifest.getDimensionIds());
+
+        AnalysisProgressTracker.setNumberOfDimensions(dimensionIds.size());
+        // Shared by the change checks of all dimensions
+        final ExecutorService regionCheckThreads = Executors
+                .newFixedThreadPool(budget.getWorkerThreads(), runnable -> {
+                    final Thread thread = new Thread(runnable, Tags.MODNAME + " region check");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            for (int dimensionId : dimensionIds) {
+                throwIfCancelled();
+
+                final List<File> regionFiles = world.getDimensionIds().contains(dimensionId)
+                        ? world.getAllRegionFiles(dimensionId)
+                        : Collections.emptyList();
+                final List<File> changedRegionFiles = findChangedRegionFiles(
+                        manifest,
+                        dimensionId,
+                        regionFiles,
+                        regionCheckThreads);
+                final List<String> removedRegions = manifest.getRemovedRegions(dimensionId, regionFiles);
+                VP.info(
+                        "Dimension " + dimensionId
+                                + ": "
+                                + changedRegionFiles.size()
+                                + " of "
+                                + regionFiles.size()
+                                + " region files changed, "
+                                + removedRegions.size()
+                                + " removed");
+
+                final List<String> replacedRegionNames = new ArrayList<>(removedRegions);
+                replacedRegionNames
+                        .addAll(changedRegionFiles.stream().map(File::getName).collect(Collectors.toList()));
+
+                final DimensionAnalysis dimension = new DimensionAnalysis(dimensionId, cache, budget, isCancelled);
+                if (cache == ServerCache.instance) {
+                    dimension.clearRegions(replacedRegionNames);
+                } else if (removedRegions.isEmpty() == false) {
+                    // Removed regions are dropped before the manifest forgets them at the next checkpoint
+                    ServerCache.instance
+                            .replaceOreVeins(dimensionId, DimensionAnalysis.getRegionKeys(removedRegions), cache);
+                }
+                for (String removedRegion : removedRegions) {
+                    manifest.markRemoved(dimensionId, removedRegion);
+                }
+                if (changedRegionFiles.isEmpty() == false) {
+                    dimension.processRegionFiles(
+                            changedRegionFiles,
+                            REGION_FILES_PER_CHECKPOINT,
+                            completedRegionFiles -> markAnalyzed(manifest, dimension, completedRegionFiles));
+                }
+                AnalysisProgressTracker.dimensionProcessed();
+            }
+        } finally {
+            regionCheckThreads.shutdown();
+        }
+
+        AnalysisProgressTracker.processingFinished();
+        if (cache != ServerCache.instance && replaceAll) {
+            throwIfCancelled();
+            // Also drops the veins of regions that were cached before, but are neither analyzed nor removed now
+            VP.info("Swapping in the new ore vein cache...");
+            dimensionIds.forEach(dimensionId -> ServerCache.instance.replaceOreVeins(dimensionId, null, cache));
+        }
+        VP.info("Saving ore vein cache...");
+        // The manifest must never claim regions whose veins are not stored yet
+        ServerCache.instance.flushVeinCacheToDisk();
+        manifest.save();
+        ServerCache.instance.setAnalysisInProgress(false);
+    }
+
+    /**
+     * Region files whose modification time changed are hashed, so they are checked on the given threads, which are
+     * as many as the budget allows. Every check waits while the server ticks too slowly.
+     */
+    private List<File> findChangedRegionFiles(RegionScanManifest manifest, int dimensionId, List<File> regionFiles,
+            ExecutorService threads) {
+        final List<Callable<Boolean>> checks = new ArrayList<>();
+        for (File regionFile : regionFiles) {
+            checks.add(() -> {
+                budget.awaitServerHeadroom(isCancelled);
+                // A cancelled analysis is not resumed from this list, so the remaining files are not checked
+                return isCancelled.getAsBoolean() || manifest.isUnchanged(dimensionId, regionFile, budget) == false;
+            });
+        }
+        try {
+            final List<Future<Boolean>> isChanged = threads.invokeAll(checks);
+            final List<File> changedRegionFiles = new ArrayList<>();
+            for (int index = 0; index < regionFiles.size(); index++) {
+                if (isChanged.get(index).get()) {
+                    changedRegionFiles.add(regionFiles.get(index));
+                }
+            }
+            throwIfCancelled();
+            return changedRegionFiles;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("World analysis interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Corrupt region files are left out, so they are tried again next time. The analyzed regions are swapped into the
+     * server cache and the manifest is saved right away. Once it is on disk, an interrupted analysis resumes with the
+     * region files that are not in it.
+     */
+    private void markAnalyzed(RegionScanManifest manifest, DimensionAnalysis dimension, List<File> regionFiles) {
+        if (cache != ServerCache.instance) {
+            final List<String> regionNames = regionFiles.stream().map(File::getName).collect(Collectors.toList());
+            ServerCache.instance
+                    .replaceOreVeins(dimension.dimensionId, DimensionAnalysis.getRegionKeys(regionNames), cache);
+        }
+        for (File regionFile : regionFiles) {
+            final Long oreChunkHash = dimension.getOreChunkHashes().get(regionFile);
+            if (oreChunkHash != null && dimension.getCorruptRegionFiles().contains(regionFile) == false) {
+                manifest.markAnalyzed(dimension.dimensionId, regionFile, oreChunkHash);
+            }
+        }
+        // The manifest must never claim regions whose veins are not stored yet
+        ServerCache.instance.flushVeinCacheToDisk();
+        manifest.save();
+    }
+
+    private void throwIfCancelled() {
+        if (isCancelled.getAsBoolean()) {
+            throw new CancellationException("World analysis cancelled");
+        }
     }
 
     private void cacheVeins(List<Integer> dimensionIds) throws IOException, DataFormatException {
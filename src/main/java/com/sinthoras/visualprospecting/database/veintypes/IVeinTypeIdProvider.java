@@ -0,0 +1,8 @@
+package com.sinthoras.visualprospecting.database.veintypes;
+
+// Implemented by ore vein generators, so world generation passes on vein types without looking up their names
+public interface IVeinTypeIdProvider {
+
+    // The id of VeinType.NO_VEIN if the generator is no known vein type
+    short visualprospecting$getVeinTypeId();
+}
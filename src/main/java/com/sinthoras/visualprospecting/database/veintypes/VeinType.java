@@ -27,6 +27,8 @@ public class VeinType {
     public final int minBlockY;
     public final int maxBlockY;
     public final Set<Short> oresAsSet;
+    // getOresAtLayer without duplicates as arrays, so identifying veins does not allocate sets
+    private final short[][] oreMetaDataAtLayer = new short[veinHeight][];
     private boolean isHighlighted = true;
 
     // Available after VisualProspecting post GT initialization
@@ -57,6 +59,14 @@ public class VeinType {
         oresAsSet.add(secondaryOreMeta);
         oresAsSet.add(inBetweenOreMeta);
         oresAsSet.add(sporadicOreMeta);
+        for (int layerBlockY = 0; layerBlockY < veinHeight; layerBlockY++) {
+            final Set<Short> oresAtLayer = getOresAtLayer(layerBlockY);
+            oreMetaDataAtLayer[layerBlockY] = new short[oresAtLayer.size()];
+            int ore = 0;
+            for (short metaData : oresAtLayer) {
+                oreMetaDataAtLayer[layerBlockY][ore++] = metaData;
+            }
+        }
     }
 
     public boolean matches(Set<Short> foundOres) {
@@ -121,6 +131,11 @@ public class VeinType {
         }
     }
 
+    // Shared between all callers, so the returned array must not be modified
+    public short[] getOreMetaDataAtLayer(int layerBlockY) {
+        return oreMetaDataAtLayer[layerBlockY];
+    }
+
     public boolean isHighlighted() {
         return isHighlighted;
     }
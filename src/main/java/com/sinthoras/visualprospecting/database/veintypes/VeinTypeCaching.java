@@ -29,6 +29,7 @@ public class VeinTypeCaching implements Runnable {
     private static Map<String, Short> veinTypeStorageInfo;
     public static List<VeinType> veinTypes;
     public static Set<Short> largeVeinOres;
+    public static VeinTypeMatcher veinTypeMatcher;
     private static int longesOreName = 0;
 
     // BartWorks initializes veins in FML preInit
@@ -112,6 +113,8 @@ public class VeinTypeCaching implements Runnable {
         }
         saveVeinTypeStorageInfo();
 
+        veinTypeMatcher = new VeinTypeMatcher(veinTypes);
+
         for (VeinType veinType : veinTypes) {
             if (veinType.name.length() > longesOreName) {
                 longesOreName = veinType.name.length();
@@ -0,0 +1,215 @@
+package com.sinthoras.visualprospecting.database.veintypes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sinthoras.visualprospecting.VP;
+
+/**
+ * Finds all vein types whose ores were all found in an ore chunk. Ores are mapped to dense indices, so sets of ores are
+ * small bitsets and checking a vein type takes a few word ANDs. Every vein type is only listed under its ore that is
+ * part of the fewest vein types. Therefore, only the vein types listed under the found ores need to be checked and
+ * each of them at most once.
+ */
+public class VeinTypeMatcher {
+
+    private static final int NO_INDEX = -1;
+
+    // Dense index by ore meta data, NO_INDEX for ores that are not part of any vein type
+    private final int[] oreIndices;
+    private final int numberOfWords;
+    // By dense ore index: the vein types listed under that ore and all their ores as bitsets
+    private final VeinType[][] candidates;
+    private final long[][][] candidateOres;
+    // Dense indices of the ores of every layer, only for vein types that can be found
+    private final Map<VeinType, int[][]> oresAtLayerByVeinType = new IdentityHashMap<>();
+
+    public VeinTypeMatcher(List<VeinType> veinTypes) {
+        int maxOreMetaData = 0;
+        for (VeinType veinType : veinTypes) {
+            for (short metaData : veinType.oresAsSet) {
+                maxOreMetaData = Math.max(maxOreMetaData, metaData);
+            }
+        }
+        oreIndices = new int[maxOreMetaData + 1];
+        Arrays.fill(oreIndices, NO_INDEX);
+
+        int numberOfOres = 0;
+        for (VeinType veinType : veinTypes) {
+            for (short metaData : veinType.oresAsSet) {
+                if (metaData >= 0 && oreIndices[metaData] == NO_INDEX) {
+                    oreIndices[metaData] = numberOfOres++;
+                }
+            }
+        }
+        numberOfWords = (numberOfOres + Long.SIZE - 1) / Long.SIZE;
+
+        final int[] veinTypesPerOre = new int[numberOfOres];
+        for (VeinType veinType : veinTypes) {
+            for (short metaData : veinType.oresAsSet) {
+                if (metaData >= 0) {
+                    veinTypesPerOre[oreIndices[metaData]]++;
+                }
+            }
+        }
+
+        final List<List<VeinType>> candidatesPerOre = new ArrayList<>(numberOfOres);
+        for (int ore = 0; ore < numberOfOres; ore++) {
+            candidatesPerOre.add(new ArrayList<>());
+        }
+        for (VeinType veinType : veinTypes) {
+            // Vein types with placeholder ores, like NO_VEIN, can never be found
+            if (veinType.oresAsSet.stream().anyMatch(metaData -> metaData < 0)) {
+                continue;
+            }
+            int keyOre = NO_INDEX;
+            for (short metaData : veinType.oresAsSet) {
+                final int ore = oreIndices[metaData];
+                if (keyOre == NO_INDEX || veinTypesPerOre[ore] < veinTypesPerOre[keyOre]) {
+                    keyOre = ore;
+                }
+            }
+            candidatesPerOre.get(keyOre).add(veinType);
+            oresAtLayerByVeinType.put(veinType, getOresAtLayer(veinType));
+        }
+
+        candidates = new VeinType[numberOfOres][];
+        candidateOres = new long[numberOfOres][][];
+        for (int ore = 0; ore < numberOfOres; ore++) {
+            final List<VeinType> veinTypesOfOre = candidatesPerOre.get(ore);
+            candidates[ore] = veinTypesOfOre.toArray(new VeinType[0]);
+            candidateOres[ore] = new long[veinTypesOfOre.size()][];
+            for (int candidate = 0; candidate < veinTypesOfOre.size(); candidate++) {
+                final long[] ores = createOreSet();
+                for (short metaData : veinTypesOfOre.get(candidate).oresAsSet) {
+                    addOre(ores, metaData);
+                }
+                candidateOres[ore][candidate] = ores;
+            }
+        }
+    }
+
+    private int[][] getOresAtLayer(VeinType veinType) {
+        final int[][] oresAtLayer = new int[VeinType.veinHeight][];
+        for (int layerBlockY = 0; layerBlockY < VeinType.veinHeight; layerBlockY++) {
+            final short[] metaDataAtLayer = veinType.getOreMetaDataAtLayer(layerBlockY);
+            oresAtLayer[layerBlockY] = new int[metaDataAtLayer.length];
+            for (int ore = 0; ore < metaDataAtLayer.length; ore++) {
+                oresAtLayer[layerBlockY][ore] = oreIndices[metaDataAtLayer[ore]];
+            }
+        }
+        return oresAtLayer;
+    }
+
+    // An empty set of ores for this matcher
+    public long[] createOreSet() {
+        return new long[numberOfWords];
+    }
+
+    // One set of ores for every height of the world, all in one array
+    public long[] createOreSetsByHeight() {
+        return new long[VP.minecraftWorldHeight * numberOfWords];
+    }
+
+    public int getNumberOfOres() {
+        return candidates.length;
+    }
+
+    // Dense index of the ore or -1 if it is not part of any vein type
+    public int getOreIndex(short metaData) {
+        return metaData >= 0 && metaData < oreIndices.length ? oreIndices[metaData] : NO_INDEX;
+    }
+
+    /**
+     * Ores that are not part of any vein type are left out, they can not change the result.
+     *
+     * @return The dense index of the ore or -1 if it was left out
+     */
+    public int addOre(long[] ores, short metaData) {
+        final int ore = getOreIndex(metaData);
+        if (ore != NO_INDEX) {
+            ores[ore / Long.SIZE] |= 1L << ore;
+        }
+        return ore;
+    }
+
+    // Sets created by createOreSetsByHeight() take dense indices as returned by addOre
+    public void addOreAtHeight(long[] oreSetsByHeight, int ore, int blockY) {
+        oreSetsByHeight[blockY * numberOfWords + ore / Long.SIZE] |= 1L << ore;
+    }
+
+    // Empties the set at the given height faster than clearing all sets, if only a few heights were filled
+    public void clearOresAtHeight(long[] oreSetsByHeight, int blockY) {
+        Arrays.fill(oreSetsByHeight, blockY * numberOfWords, (blockY + 1) * numberOfWords, 0);
+    }
+
+    /**
+     * Finds the lowest height within the range of the vein type at which all ores of each of its layers were found,
+     * one layer above the other. Only then the vein type can have been generated in full in this chunk.
+     *
+     * @param oreSetsByHeight Created by {@link #createOreSetsByHeight()}
+     * @return The height of the lowest layer or -1 if there is none
+     */
+    public int findGeneratedVeinBlockY(long[] oreSetsByHeight, VeinType veinType) {
+        final int[][] oresAtLayer = oresAtLayerByVeinType.get(veinType);
+        if (oresAtLayer == null) {
+            return -1;
+        }
+        final int endBlockY = Math.min(veinType.maxBlockY, VP.minecraftWorldHeight - VeinType.veinHeight + 1);
+        for (int blockY = Math.max(0, veinType.minBlockY); blockY < endBlockY; blockY++) {
+            if (isGeneratedAt(oreSetsByHeight, oresAtLayer, blockY)) {
+                return blockY;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isGeneratedAt(long[] oreSetsByHeight, int[][] oresAtLayer, int blockY) {
+        for (int layerBlockY = 0; layerBlockY < VeinType.veinHeight; layerBlockY++) {
+            final int offset = (blockY + layerBlockY) * numberOfWords;
+            for (int ore : oresAtLayer[layerBlockY]) {
+                if ((oreSetsByHeight[offset + ore / Long.SIZE] & (1L << ore)) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param foundOres    Created by {@link #createOreSet()}
+     * @param matchedVeins Filled with the first matched vein types, as many as fit
+     * @return The number of all vein types whose ores are all part of foundOres
+     */
+    public int findMatchingVeinTypes(long[] foundOres, VeinType[] matchedVeins) {
+        int numberOfMatchedVeins = 0;
+        for (int word = 0; word < numberOfWords; word++) {
+            long remainingOres = foundOres[word];
+            while (remainingOres != 0) {
+                final int ore = word * Long.SIZE + Long.numberOfTrailingZeros(remainingOres);
+                remainingOres &= remainingOres - 1;
+                for (int candidate = 0; candidate < candidates[ore].length; candidate++) {
+                    if (containsAll(foundOres, candidateOres[ore][candidate])) {
+                        if (numberOfMatchedVeins < matchedVeins.length) {
+                            matchedVeins[numberOfMatchedVeins] = candidates[ore][candidate];
+                        }
+                        numberOfMatchedVeins++;
+                    }
+                }
+            }
+        }
+        return numberOfMatchedVeins;
+    }
+
+    private boolean containsAll(long[] ores, long[] otherOres) {
+        for (int word = 0; word < numberOfWords; word++) {
+            if ((ores[word] & otherOres[word]) != otherOres[word]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,6 +5,7 @@ import net.minecraft.entity.player.EntityPlayerMP;
 
 import com.sinthoras.visualprospecting.VP;
 import com.sinthoras.visualprospecting.database.ClientCache;
+import com.sinthoras.visualprospecting.database.ServerCache;
 import com.sinthoras.visualprospecting.database.WorldIdHandler;
 import com.sinthoras.visualprospecting.network.WorldIdNotification;
 import com.sinthoras.visualprospecting.task.TaskManager;
@@ -27,6 +28,13 @@ public class HooksFML {
         TaskManager.instance.onTick();
     }
 
+    @SubscribeEvent
+    public void onEvent(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            ServerCache.instance.drainGeneratedOreVeins();
+        }
+    }
+
     @SubscribeEvent(priority = EventPriority.LOW)
     public void onEvent(PlayerEvent.PlayerLoggedInEvent event) {
         if (event.player instanceof EntityPlayerMP playerMP) {
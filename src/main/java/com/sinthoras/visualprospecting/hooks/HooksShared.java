@@ -15,6 +15,7 @@ import com.sinthoras.visualprospecting.database.RedoServerCacheCommand;
 import com.sinthoras.visualprospecting.database.RedoServerSpawnCacheCommand;
 import com.sinthoras.visualprospecting.database.ServerCache;
 import com.sinthoras.visualprospecting.database.WorldIdHandler;
+import com.sinthoras.visualprospecting.database.cachebuilder.ServerCacheRebuild;
 import com.sinthoras.visualprospecting.database.cachebuilder.WorldAnalysis;
 import com.sinthoras.visualprospecting.database.veintypes.VeinTypeCaching;
 import com.sinthoras.visualprospecting.item.ProspectorsLog;
@@ -106,14 +107,21 @@ public class HooksShared {
         final MinecraftServer minecraftServer = event.getServer();
         WorldIdHandler.load(minecraftServer.worldServers[0]);
 
-        // Attempt to load the vein cache. If unable or forcing a recache...
-        if (!ServerCache.instance.loadVeinCache(WorldIdHandler.getWorldId()) || Config.recacheVeins) {
+        // Attempt to load the vein cache. If unable, forcing a recache or the last analysis was interrupted...
+        final boolean isVeinCacheLoaded = ServerCache.instance.loadVeinCache(WorldIdHandler.getWorldId());
+        if (!isVeinCacheLoaded || Config.recacheVeins || ServerCache.instance.isAnalysisInProgress()) {
 
             // Reanalyze the world and reload it into memory.
             try {
                 WorldAnalysis world = new WorldAnalysis(
                         minecraftServer.getEntityWorld().getSaveHandler().getWorldDirectory());
-                world.cacheVeins();
+                if (isVeinCacheLoaded && !Config.recacheVeins) {
+                    // Continue from the last checkpoint
+                    VP.info("Resuming the interrupted GT vein analysis...");
+                    world.cacheChangedVeins();
+                } else {
+                    world.cacheVeins();
+                }
             } catch (IOException | DataFormatException e) {
 
                 // Oops
@@ -130,6 +138,7 @@ public class HooksShared {
     public void fmlLifeCycleEvent(FMLServerStartedEvent event) {}
 
     public void fmlLifeCycleEvent(FMLServerStoppingEvent event) {
+        ServerCacheRebuild.cancelAndWait();
         ServerCache.instance.saveVeinCache();
         ServerCache.instance.reset();
     }
@@ -7,7 +7,6 @@ import net.minecraft.client.Minecraft;
 
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.database.ClientCache;
-import com.sinthoras.visualprospecting.database.OreVeinPosition;
 import com.sinthoras.visualprospecting.database.veintypes.VeinType;
 import com.sinthoras.visualprospecting.database.veintypes.VeinTypeCaching;
 import com.sinthoras.visualprospecting.integration.model.buttons.OreVeinButtonManager;
@@ -65,10 +64,9 @@ public class OreVeinLayerManager extends WaypointProviderManager {
         for (int chunkX = minOreChunkX; chunkX <= maxOreChunkX; chunkX = Utils.mapToCenterOreChunkCoord(chunkX + 3)) {
             for (int chunkZ = minOreChunkZ; chunkZ
                     <= maxOreChunkZ; chunkZ = Utils.mapToCenterOreChunkCoord(chunkZ + 3)) {
-                final OreVeinPosition oreVeinPosition = ClientCache.instance
-                        .getOreVein(playerDimensionId, chunkX, chunkZ);
-                if (oreVeinPosition.veinType != VeinType.NO_VEIN) {
-                    oreChunkLocations.add(new OreVeinLocation(oreVeinPosition));
+                if (ClientCache.instance.getOreVeinType(playerDimensionId, chunkX, chunkZ) != VeinType.NO_VEIN) {
+                    oreChunkLocations.add(
+                            new OreVeinLocation(ClientCache.instance.getOreVein(playerDimensionId, chunkX, chunkZ)));
                 }
             }
         }
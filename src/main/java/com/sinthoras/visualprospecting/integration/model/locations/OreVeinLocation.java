@@ -65,6 +65,8 @@ public class OreVeinLocation implements IWaypointAndLocationProvider {
 
     public void toggleOreVein() {
         ClientCache.instance.toggleOreVein(oreVeinPosition.dimensionId, oreVeinPosition.chunkX, oreVeinPosition.chunkZ);
+        // The cache hands out copies, keep this one in sync for rendering
+        oreVeinPosition.toggleDepleted();
     }
 
     @Override
@@ -21,6 +21,7 @@ public enum Mixins {
     GT_MetaTileEntity_AdvSeismicProspectorMixin("gregtech.GT_MetaTileEntity_AdvSeismicProspectorMixin", GT5U),
     GT_MetaTileEntity_ScannerMixin("gregtech.GT_MetaTileEntity_ScannerMixin", GT5U),
     GT_WorldGenContainerMixin("gregtech.WorldGenContainerMixin", GT5U),
+    GT_WorldgenMixin("gregtech.GT_WorldgenMixin", GT5U),
 
     // Journeymap mixins
     DisplayVarsAccessorMixin("journeymap.DisplayVarsAccessor", Side.CLIENT, JOURNEYMAP),
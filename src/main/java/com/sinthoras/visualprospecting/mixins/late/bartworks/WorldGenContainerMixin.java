@@ -13,6 +13,7 @@ import com.github.bartimaeusnek.bartworks.system.oregen.BW_OreLayer;
 import com.github.bartimaeusnek.bartworks.system.oregen.BW_WordGenerator;
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.database.ServerCache;
+import com.sinthoras.visualprospecting.database.veintypes.IVeinTypeIdProvider;
 
 @Mixin(BW_WordGenerator.WorldGenContainer.class)
 public class WorldGenContainerMixin {
@@ -37,11 +38,11 @@ public class WorldGenContainerMixin {
                 chunkGenerator,
                 chunkProvider);
         if (oreVeinPlaced) {
-            ServerCache.instance.notifyOreVeinGeneration(
+            ServerCache.instance.queueOreVeinGeneration(
                     world.provider.dimensionId,
                     Utils.mapToCenterOreChunkCoord(Utils.coordBlockToChunk(blockX)),
                     Utils.mapToCenterOreChunkCoord(Utils.coordBlockToChunk(blockZ)),
-                    worldGen.mWorldGenName);
+                    ((IVeinTypeIdProvider) worldGen).visualprospecting$getVeinTypeId());
         }
         return oreVeinPlaced;
     }
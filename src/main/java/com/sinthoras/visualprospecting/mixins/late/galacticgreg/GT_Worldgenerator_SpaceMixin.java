@@ -11,6 +11,7 @@ import org.spongepowered.asm.mixin.injection.Redirect;
 
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.database.ServerCache;
+import com.sinthoras.visualprospecting.database.veintypes.IVeinTypeIdProvider;
 
 import bloodasp.galacticgreg.GT_Worldgenerator_Space;
 import gregtech.api.world.GT_Worldgen;
@@ -37,11 +38,11 @@ public class GT_Worldgenerator_SpaceMixin {
                 chunkGenerator,
                 chunkProvider);
         if (oreVeinPlaced) {
-            ServerCache.instance.notifyOreVeinGeneration(
+            ServerCache.instance.queueOreVeinGeneration(
                     world.provider.dimensionId,
                     Utils.mapToCenterOreChunkCoord(Utils.coordBlockToChunk(blockX)),
                     Utils.mapToCenterOreChunkCoord(Utils.coordBlockToChunk(blockZ)),
-                    worldGen.mWorldGenName);
+                    ((IVeinTypeIdProvider) worldGen).visualprospecting$getVeinTypeId());
         }
         return oreVeinPlaced;
     }
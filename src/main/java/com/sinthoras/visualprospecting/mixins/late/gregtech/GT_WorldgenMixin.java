@@ -0,0 +1,40 @@
+package com.sinthoras.visualprospecting.mixins.late.gregtech;
+
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+
+import com.sinthoras.visualprospecting.database.veintypes.IVeinTypeIdProvider;
+import com.sinthoras.visualprospecting.database.veintypes.VeinType;
+import com.sinthoras.visualprospecting.database.veintypes.VeinTypeCaching;
+
+import gregtech.api.world.GT_Worldgen;
+
+@Mixin(value = GT_Worldgen.class, remap = false)
+public class GT_WorldgenMixin implements IVeinTypeIdProvider {
+
+    @Unique
+    private static final short visualprospecting$UNRESOLVED = -1;
+
+    @Shadow
+    @Final
+    public String mWorldGenName;
+
+    // Resolved on first use. Racing world generation threads resolve the same id
+    @Unique
+    private short visualprospecting$veinTypeId = visualprospecting$UNRESOLVED;
+
+    @Override
+    public short visualprospecting$getVeinTypeId() {
+        if (visualprospecting$veinTypeId != visualprospecting$UNRESOLVED) {
+            return visualprospecting$veinTypeId;
+        }
+        final VeinType veinType = VeinTypeCaching.getVeinType(mWorldGenName);
+        // Generators that are no vein type are looked up every time, but they are rarely executed
+        if (veinType != VeinType.NO_VEIN) {
+            visualprospecting$veinTypeId = veinType.veinId;
+        }
+        return veinType.veinId;
+    }
+}
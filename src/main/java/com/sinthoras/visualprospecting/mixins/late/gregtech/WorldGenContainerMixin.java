@@ -11,6 +11,7 @@ import org.spongepowered.asm.mixin.injection.Redirect;
 
 import com.sinthoras.visualprospecting.Utils;
 import com.sinthoras.visualprospecting.database.ServerCache;
+import com.sinthoras.visualprospecting.database.veintypes.IVeinTypeIdProvider;
 
 import gregtech.common.GT_Worldgen_GT_Ore_Layer;
 import gregtech.common.GT_Worldgenerator;
@@ -41,11 +42,11 @@ public class WorldGenContainerMixin {
                 aChunkGenerator,
                 aChunkProvider);
         if (result == GT_Worldgen_GT_Ore_Layer.ORE_PLACED && !instance.mWorldGenName.equals("NoOresInVein")) {
-            ServerCache.instance.notifyOreVeinGeneration(
+            ServerCache.instance.queueOreVeinGeneration(
                     aWorld.provider.dimensionId,
                     Utils.coordBlockToChunk(aSeedX),
                     Utils.coordBlockToChunk(aSeedZ),
-                    instance.mWorldGenName);
+                    ((IVeinTypeIdProvider) instance).visualprospecting$getVeinTypeId());
         }
         return result;
     }
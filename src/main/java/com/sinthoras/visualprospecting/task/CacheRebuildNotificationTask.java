@@ -0,0 +1,41 @@
+package com.sinthoras.visualprospecting.task;
+
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentTranslation;
+import net.minecraft.util.IChatComponent;
+
+import com.sinthoras.visualprospecting.database.cachebuilder.ServerCacheRebuild;
+
+// Tells whoever started a cache rebuild once it is over, the rebuild itself runs on its own thread
+public class CacheRebuildNotificationTask implements ITask {
+
+    private final ICommandSender sender;
+    private final ServerCacheRebuild rebuild;
+
+    public CacheRebuildNotificationTask(ICommandSender sender, ServerCacheRebuild rebuild) {
+        this.sender = sender;
+        this.rebuild = rebuild;
+    }
+
+    @Override
+    public boolean process() {
+        final String translationKey;
+        switch (rebuild.getState()) {
+            case Finished:
+                translationKey = "visualprospecting.redoservercache.confirmation";
+                break;
+            case Failed:
+                translationKey = "visualprospecting.redoservercache.failure";
+                break;
+            case Cancelled:
+                translationKey = "visualprospecting.redoservercache.cancelled";
+                break;
+            default:
+                return false;
+        }
+        final IChatComponent notification = new ChatComponentTranslation(translationKey);
+        notification.getChatStyle().setItalic(true);
+        sender.addChatMessage(notification);
+        return true;
+    }
+}